@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.hal.AsynchronousIdentifyListener;
+import org.fosstrak.hal.HardwareException;
+import org.fosstrak.hal.Observation;
+
+/**
+ * Runs the identify cycles of an asynchronous identify and delivers the
+ * observations to the listeners.
+ *
+ * Timer cycles are scheduled on a fixed grid from the start time, so they
+ * don't drift. A cycle that overruns the period makes the runner skip the
+ * slots already missed instead of running them back to back. When the
+ * controller has an input trigger configured, cycles only read while the
+ * reader input is active, continuous reading waits for the trigger.
+ */
+final class AsynchronousIdentifyRunner implements Runnable {
+
+	static Logger log = Logger.getLogger(AsynchronousIdentifyRunner.class);
+
+	/**
+	 * Pause after a failed cycle in continuous mode
+	 */
+	private static final long ERROR_PAUSE = 1000;
+
+	private final IntermecBRIController controller;
+
+	private final String[] readPointNames;
+
+	/** Cycle period in nanoseconds, 0 for continuous reading */
+	private final long period;
+
+	private final List<AsynchronousIdentifyListener> listeners;
+
+	private volatile boolean running = true;
+
+	private Thread thread;
+
+	/** Number of timer slots skipped because of overruns */
+	private long skipped = 0;
+
+	/**
+	 *
+	 * @param controller
+	 * @param readPointNames
+	 * @param periodMillis
+	 *            0 for continuous reading
+	 * @param listeners
+	 */
+	AsynchronousIdentifyRunner(IntermecBRIController controller, String[] readPointNames, long periodMillis,
+			List<AsynchronousIdentifyListener> listeners) {
+
+		this.controller = controller;
+		this.readPointNames = readPointNames;
+		this.period = periodMillis * 1000000L;
+		this.listeners = listeners;
+	}
+
+	synchronized void start() {
+
+		thread = new Thread(this, "AsynchronousIdentify-" + controller.getHALName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the cycles and waits until the thread exits, the current cycle
+	 * can take longer than the wait and the wait goes on
+	 *
+	 * @param millis
+	 *            time between warnings while waiting
+	 * @return false if interrupted before the thread exited
+	 */
+	boolean stop(long millis) {
+
+		running = false;
+		thread.interrupt();
+
+		if (Thread.currentThread() == thread) {
+			return true;
+		}
+
+		try {
+			while (thread.isAlive()) {
+				thread.join(Math.max(1, millis));
+
+				if (thread.isAlive()) {
+					log.warn("Asynchronous identify of " + controller.getHALName()
+							+ " still running, waiting for the current cycle");
+				}
+			}
+			return true;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	boolean isRunning() {
+		return running && thread.isAlive();
+	}
+
+	public void run() {
+
+		long start = System.nanoTime();
+		long cycle = 0;
+
+		while (running) {
+
+			if (period > 0) {
+				long next = start + cycle * period;
+				long now = System.nanoTime();
+
+				if (now < next) {
+					if (!sleep(next - now)) {
+						break;
+					}
+				} else {
+					long behind = (now - next) / period;
+
+					if (behind > 0) {
+						skipped += behind;
+						cycle += behind;
+
+						log.debug("Asynchronous identify overrun, " + behind + " cycles skipped (" + skipped
+								+ " in total)");
+					}
+				}
+				cycle++;
+			}
+
+			try {
+				if (!controller.isInputTriggerActive()) {
+					long wait = controller.getInputTriggerPollInterval();
+
+					if (period == 0) {
+						if (!controller.awaitInputTrigger(wait)) {
+							break;
+						}
+						continue;
+					}
+
+					// The events of the reader trigger are only read while
+					// they are awaited, the slot reads if one comes in time
+					if (!controller.isReaderTriggerArmed()) {
+						continue;
+					}
+
+					wait = Math.min(wait, (start + cycle * period - System.nanoTime()) / 1000000);
+
+					if (!controller.awaitInputTrigger(Math.max(1, wait)) || !controller.isInputTriggerActive()) {
+						continue;
+					}
+				}
+
+				Observation[] observations = controller.identify(readPointNames);
+
+				for (Observation observation : observations) {
+					for (AsynchronousIdentifyListener listener : listeners) {
+						try {
+							listener.asynchronousIdentifyPerformed(observation);
+
+						} catch (RuntimeException e) {
+							log.error("Error in asynchronous identify listener " + listener, e);
+						}
+					}
+				}
+
+			} catch (HardwareException e) {
+				if (!running) {
+					break;
+				}
+				log.error("Asynchronous identify cycle failed", e);
+
+				if (period == 0 && !sleep(ERROR_PAUSE * 1000000L)) {
+					break;
+				}
+			}
+		}
+
+		running = false;
+	}
+
+	/**
+	 * Returns false if interrupted
+	 */
+	private boolean sleep(long nanos) {
+
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+			return running;
+
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import org.fosstrak.hal.impl.intermec.connector.BRIReadResult;
+import org.fosstrak.hal.transponder.InventoryItem;
+
+/**
+ * Inventory item with the per tag fields reported by the BRI read command.
+ * Fields not reported hold {@link BRIReadResult#UNKNOWN}.
+ */
+public class BRIInventoryItem extends InventoryItem {
+
+	/**
+	 * Antenna with the strongest read of the tag
+	 */
+	public int antenna = BRIReadResult.UNKNOWN;
+
+	/**
+	 * Number of times the tag was read, adding all the antennas
+	 */
+	public int readCount = BRIReadResult.UNKNOWN;
+
+	/**
+	 * Strongest signal of the tag
+	 */
+	public int rssi = BRIReadResult.UNKNOWN;
+
+	/**
+	 * Last time the reader read the tag, in milliseconds
+	 */
+	public long time = BRIReadResult.UNKNOWN;
+
+	/**
+	 * Merges a row of the read response, a tag read by several antennas has
+	 * one row per antenna
+	 * 
+	 * @param result
+	 * @param row
+	 */
+	void merge(BRIReadResult result, int row) {
+
+		int count = result.getCount(row);
+		int rowRssi = result.getRssi(row);
+
+		// Without COUNT every row is one read
+		readCount = (readCount == BRIReadResult.UNKNOWN ? 0 : readCount)
+				+ (count == BRIReadResult.UNKNOWN ? 1 : count);
+
+		if (antenna == BRIReadResult.UNKNOWN || rowRssi > rssi) {
+			antenna = result.getAntenna(row);
+		}
+
+		if (rowRssi > rssi) {
+			rssi = rowRssi;
+		}
+
+		if (result.getTime(row) > time) {
+			time = result.getTime(row);
+		}
+	}
+}
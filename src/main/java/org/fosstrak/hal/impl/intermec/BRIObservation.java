@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import org.fosstrak.hal.Observation;
+import org.fosstrak.hal.impl.intermec.connector.BRIReadResult;
+
+/**
+ * Observation of the Intermec BRI controller, with the pure identity URIs of
+ * the ids when the controller decodes them and the per tag fields requested
+ * in the read command. The columns are in the same order as the ids, null if
+ * not requested, and fields not reported hold {@link BRIReadResult#UNKNOWN}.
+ */
+public class BRIObservation extends Observation {
+
+	/** URI of each id, null for the ids that can't be decoded */
+	private String[] uris;
+
+	/** Antenna with the strongest read of each tag */
+	private int[] antennas;
+
+	/** Times each tag was read */
+	private int[] readCounts;
+
+	/** Strongest signal of each tag */
+	private int[] rssis;
+
+	/** Last time the reader read each tag, in milliseconds */
+	private long[] times;
+
+	/**
+	 * Returns the pure identity URIs, in the same order as the ids. Null if the
+	 * controller doesn't decode the ids.
+	 *
+	 * @return
+	 */
+	public String[] getUris() {
+		return uris;
+	}
+
+	public void setUris(String[] uris) {
+		this.uris = uris;
+	}
+
+	public int[] getAntennas() {
+		return antennas;
+	}
+
+	public int[] getReadCounts() {
+		return readCounts;
+	}
+
+	public int[] getRssis() {
+		return rssis;
+	}
+
+	public long[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * Sets the per tag fields
+	 *
+	 * @param antennas
+	 * @param readCounts
+	 * @param rssis
+	 * @param times
+	 */
+	public void setFields(int[] antennas, int[] readCounts, int[] rssis, long[] times) {
+		this.antennas = antennas;
+		this.readCounts = readCounts;
+		this.rssis = rssis;
+		this.times = times;
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes the 96 bits EPCs read by the BRI (SGTIN, SSCC, SGLN and GRAI) to
+ * their pure identity URI, e.g. urn:epc:id:sgtin:0614141.812345.6789
+ *
+ * The scheme is dispatched by the header with a table built once, and the
+ * partition of each scheme gives the length of the company prefix, so no
+ * prefix lookup is needed. The same tags are read over and over, so the
+ * decoded URIs are kept in an LRU cache.
+ */
+public class EPCDecoder {
+
+	/** Number of hex digits of a 96 bits EPC */
+	private static final int EPC96_LENGTH = 24;
+
+	/** Cached value of the ids that can't be decoded */
+	private static final String UNDECODABLE = "";
+
+	/**
+	 * Layout of a scheme: name of the URI and, per partition value, the bits
+	 * and digits of the company prefix and of the reference that follows it
+	 */
+	private static final class Scheme {
+
+		final String prefix;
+		final int[][] partitions;
+
+		/** Bits of the serial or extension after the reference, 0 if none */
+		final int serialBits;
+
+		Scheme(String name, int[][] partitions, int serialBits) {
+			this.prefix = "urn:epc:id:" + name + ":";
+			this.partitions = partitions;
+			this.serialBits = serialBits;
+		}
+	}
+
+	/** Schemes by header value */
+	private static final Scheme[] SCHEMES = new Scheme[256];
+
+	static {
+		// { company prefix bits, digits, reference bits, digits }
+		SCHEMES[0x30] = new Scheme("sgtin", new int[][] { { 40, 12, 4, 1 }, { 37, 11, 7, 2 }, { 34, 10, 10, 3 },
+				{ 30, 9, 14, 4 }, { 27, 8, 17, 5 }, { 24, 7, 20, 6 }, { 20, 6, 24, 7 } }, 38);
+
+		SCHEMES[0x31] = new Scheme("sscc", new int[][] { { 40, 12, 18, 5 }, { 37, 11, 21, 6 }, { 34, 10, 24, 7 },
+				{ 30, 9, 28, 8 }, { 27, 8, 31, 9 }, { 24, 7, 34, 10 }, { 20, 6, 38, 11 } }, 0);
+
+		SCHEMES[0x32] = new Scheme("sgln", new int[][] { { 40, 12, 1, 0 }, { 37, 11, 4, 1 }, { 34, 10, 7, 2 },
+				{ 30, 9, 11, 3 }, { 27, 8, 14, 4 }, { 24, 7, 17, 5 }, { 20, 6, 21, 6 } }, 41);
+
+		SCHEMES[0x33] = new Scheme("grai", new int[][] { { 40, 12, 4, 0 }, { 37, 11, 7, 1 }, { 34, 10, 10, 2 },
+				{ 30, 9, 14, 3 }, { 27, 8, 17, 4 }, { 24, 7, 20, 5 }, { 20, 6, 24, 6 } }, 38);
+	}
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final Map<String, String> cache;
+
+	/**
+	 *
+	 * @param cacheSize
+	 *            number of decoded ids kept, 0 disables the cache
+	 */
+	public EPCDecoder(final int cacheSize) {
+
+		if (cacheSize > 0) {
+			cache = new LinkedHashMap<String, String>(Math.min(cacheSize, 1 << 16), 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > cacheSize;
+				}
+			};
+		} else {
+			cache = null;
+		}
+	}
+
+	/**
+	 * Returns the pure identity URI of a hex EPC, null if it's not a supported
+	 * 96 bits scheme
+	 *
+	 * @param id
+	 * @return
+	 */
+	public String decode(String id) {
+
+		if (cache == null) {
+			return decodeEpc(id);
+		}
+
+		String uri;
+
+		synchronized (cache) {
+			uri = cache.get(id);
+		}
+
+		if (uri == null) {
+			uri = decodeEpc(id);
+
+			synchronized (cache) {
+				cache.put(id, uri == null ? UNDECODABLE : uri);
+			}
+		}
+
+		return uri == UNDECODABLE ? null : uri;
+	}
+
+	/**
+	 * Decodes all the ids
+	 *
+	 * @param ids
+	 * @return the URIs, null for the ids that can't be decoded
+	 */
+	public String[] decode(String[] ids) {
+
+		String[] uris = new String[ids.length];
+
+		for (int i = 0; i < ids.length; i++) {
+			uris[i] = decode(ids[i]);
+		}
+
+		return uris;
+	}
+
+	/**
+	 * Decodes an EPC without the cache
+	 *
+	 * @param id
+	 * @return
+	 */
+	static String decodeEpc(String id) {
+
+		if (id == null || id.length() != EPC96_LENGTH) {
+			return null;
+		}
+
+		// The 96 bits as the upper 32 and the lower 64
+		long high = parseHex(id, 0, 8);
+		long middle = parseHex(id, 8, 16);
+		long last = parseHex(id, 16, 24);
+
+		if (high < 0 || middle < 0 || last < 0) {
+			return null;
+		}
+
+		long low = (middle << 32) | last;
+
+		Scheme scheme = SCHEMES[(int) (high >>> 24)];
+
+		if (scheme == null) {
+			return null;
+		}
+
+		// Header 8 bits, filter 3 bits
+		int partition = (int) bits(high, low, 11, 3);
+
+		if (partition >= scheme.partitions.length) {
+			return null;
+		}
+
+		int[] layout = scheme.partitions[partition];
+		int offset = 14;
+
+		long companyPrefix = bits(high, low, offset, layout[0]);
+		offset += layout[0];
+
+		long reference = bits(high, low, offset, layout[2]);
+		offset += layout[2];
+
+		if (companyPrefix >= POWERS_OF_TEN[layout[1]] || reference >= POWERS_OF_TEN[layout[3]]) {
+			return null;
+		}
+
+		StringBuilder uri = new StringBuilder(64);
+		uri.append(scheme.prefix);
+
+		appendPadded(uri, companyPrefix, layout[1]);
+		uri.append('.');
+		appendPadded(uri, reference, layout[3]);
+
+		if (scheme.serialBits > 0) {
+			uri.append('.').append(bits(high, low, offset, scheme.serialBits));
+		}
+
+		return uri.toString();
+	}
+
+	/**
+	 * Returns the value of a field of the 96 bits
+	 *
+	 * @param high
+	 *            upper 32 bits
+	 * @param low
+	 *            lower 64 bits
+	 * @param offset
+	 *            from the most significant bit
+	 * @param length
+	 *            less than 64 bits
+	 * @return
+	 */
+	private static long bits(long high, long low, int offset, int length) {
+
+		int shift = 96 - offset - length;
+		long value;
+
+		if (shift >= 64) {
+			value = high >>> (shift - 64);
+		} else if (shift == 0) {
+			value = low;
+		} else {
+			value = (low >>> shift) | (high << (64 - shift));
+		}
+
+		return value & ((1L << length) - 1);
+	}
+
+	/**
+	 * Parses up to 8 hex digits, -1 if they are not hex
+	 */
+	private static long parseHex(String id, int start, int end) {
+
+		long value = 0;
+
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(id.charAt(i), 16);
+
+			if (digit < 0) {
+				return -1;
+			}
+
+			value = (value << 4) | digit;
+		}
+
+		return value;
+	}
+
+	private static void appendPadded(StringBuilder uri, long value, int digits) {
+
+		for (int d = digits - 1; d > 0 && value < POWERS_OF_TEN[d]; d--) {
+			uri.append('0');
+		}
+
+		if (digits > 0) {
+			uri.append(value);
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.fosstrak.hal.MemoryBankDescriptor;
+import org.fosstrak.hal.MemoryDescriptor;
+import org.fosstrak.hal.TagDescriptor;
+import org.fosstrak.hal.impl.intermec.connector.BRIReadResult;
+import org.fosstrak.hal.transponder.EPCTransponderModel;
+import org.fosstrak.hal.transponder.IDType;
+
+/**
+ * Immutable snapshot of the controller configuration. Everything the read
+ * path needs (read commands, ID type, transponder model) is resolved once
+ * when the snapshot is compiled, so no configuration lookup is done per tag.
+ * A new configuration is applied by swapping the whole snapshot.
+ */
+final class IntermecBRIConfiguration {
+
+	static Logger log = Logger.getLogger(IntermecBRIConfiguration.class);
+
+	/**
+	 * Maximum number of logical sources supported by the reader
+	 */
+	static final int MAX_SOURCES = 4;
+
+	/**
+	 * BRI Network properties
+	 */
+	final String host;
+	final int port;
+	final int timeout;
+	final int bannerTimeout;
+	final long startupTimeout;
+	final boolean warmUp;
+
+	/**
+	 * Backoff between the attempts of a background startup that fails
+	 */
+	final long startupRetryDelay;
+	final long startupRetryMaxDelay;
+
+	/**
+	 * Use the shared selector engine instead of a blocking socket
+	 */
+	final boolean selectorEngine;
+
+	/**
+	 * Traffic capture and replay
+	 */
+	final String recordFile;
+	final String replayFile;
+	final boolean replayOriginalSpeed;
+
+	/**
+	 * Reader input (GPIO) that gates the asynchronous reads: the command that
+	 * reads the inputs, the mask of the inputs checked and the value that
+	 * means active. Disabled when the mask is 0. With a reader trigger the
+	 * reader reports the input and the reads go on for the hold time after
+	 * it fires, otherwise the inputs are polled
+	 */
+	final String inputTriggerCommand;
+	final int inputTriggerMask;
+	final int inputTriggerValue;
+	final long inputTriggerPollInterval;
+	final boolean inputTriggerOnReader;
+	final long inputTriggerHoldTime;
+
+	/**
+	 * Memory mapped file where the inventories are published for the local
+	 * processes, null if they are not published, and its size
+	 */
+	final String snapshotFile;
+	final int snapshotSize;
+
+	/**
+	 * Interval to check the configuration file for changes, 0 if disabled
+	 */
+	final long reloadInterval;
+
+	final String epcTransponderModelsConfig;
+	final String idTypesConfig;
+
+	/**
+	 * Per tag fields requested in the read commands and the policy to assign
+	 * the tags seen by several logical sources
+	 */
+	final String[] readFields;
+	final ReadPointVoting voting;
+
+	/**
+	 * Adaptive inventory: maximum number of read rounds per inventory, new
+	 * tags a round must find to read another one and the time budget in ms
+	 */
+	final int inventoryMaxRounds;
+	final int inventoryNewTagThreshold;
+	final long inventoryTimeBudget;
+
+	/**
+	 * File with the commissioned tag ids, null if the tags are not filtered,
+	 * the sizing of its filter and if the unknown tags are reported to the
+	 * listeners instead of dropped
+	 */
+	final String knownTagsFile;
+	final long knownTagsExpected;
+	final double knownTagsFalsePositiveRate;
+	final boolean reportUnknownTags;
+
+	/**
+	 * Decoder of the ids to pure identity URIs, null if they are not decoded
+	 */
+	final EPCDecoder epcDecoder;
+
+	/**
+	 * Logical source names, antennas and precomputed read commands
+	 */
+	final String[] readPointNames;
+	final Map<String, String> logicalSources;
+	final Map<String, String> readCommands;
+	final Map<String, String> antennaNames;
+
+	/**
+	 * Resolved ID type and transponder model of the reported tags
+	 */
+	final IDType epcIdType;
+	final EPCTransponderModel epcTransponderModel;
+	final TagDescriptor epcTagDescriptor;
+
+	/**
+	 * All the configuration parameters
+	 */
+	final Map<String, String> parameters;
+	final String[] parameterNames;
+
+	/**
+	 * The configuration compiled, only read after it's compiled. It answers
+	 * the keys that are not in the parameters, e.g. logicalSource(1).name
+	 */
+	final XMLConfiguration config;
+
+	/**
+	 * Compiles the given configuration
+	 *
+	 * @param config
+	 */
+	IntermecBRIConfiguration(XMLConfiguration config) {
+
+		host = config.getString("host");
+		port = config.getInt("port", 2189);
+		timeout = config.getInt("timeout");
+		bannerTimeout = config.getInt("bannerTimeout", timeout);
+		warmUp = config.getBoolean("warmUp", true);
+		startupRetryDelay = config.getLong("startupRetryDelay", 1000);
+		startupRetryMaxDelay = config.getLong("startupRetryMaxDelay", 30000);
+		selectorEngine = "selector".equalsIgnoreCase(config.getString("connectionEngine", "socket"));
+
+		recordFile = emptyToNull(config.getString("recordFile"));
+		replayFile = emptyToNull(config.getString("replayFile"));
+		replayOriginalSpeed = !"max".equalsIgnoreCase(config.getString("replaySpeed", "original"));
+
+		inputTriggerCommand = config.getString("inputTrigger.command", "RDGPIO");
+		inputTriggerMask = Integer.decode(config.getString("inputTrigger.mask", "0")).intValue();
+		inputTriggerValue = Integer.decode(config.getString("inputTrigger.value", "0")).intValue();
+		inputTriggerPollInterval = config.getLong("inputTrigger.pollInterval", 100);
+		inputTriggerOnReader = !"poll".equalsIgnoreCase(config.getString("inputTrigger.mode", "reader"));
+		inputTriggerHoldTime = config.getLong("inputTrigger.holdTime", 1000);
+
+		snapshotFile = emptyToNull(config.getString("snapshotFile"));
+		snapshotSize = config.getInt("snapshotSize", 1 << 20);
+
+		reloadInterval = config.getLong("configReloadInterval", 0);
+
+		epcTransponderModelsConfig = config.getString("epcTransponderModelsConfig");
+		idTypesConfig = config.getString("idTypesConfig");
+
+		inventoryMaxRounds = Math.max(1, config.getInt("adaptiveInventory.maxRounds", 1));
+		inventoryNewTagThreshold = config.getInt("adaptiveInventory.newTagThreshold", 1);
+		inventoryTimeBudget = config.getLong("adaptiveInventory.timeBudget", timeout);
+
+		knownTagsFile = emptyToNull(config.getString("knownTagFilter.file"));
+		knownTagsExpected = config.getLong("knownTagFilter.expectedEntries", 1000000);
+		knownTagsFalsePositiveRate = config.getDouble("knownTagFilter.falsePositiveRate", 0.001);
+		reportUnknownTags = "report".equalsIgnoreCase(config.getString("knownTagFilter.unknownTags", "drop"));
+
+		epcDecoder = config.getBoolean("epcDecoding.enabled", false) ? new EPCDecoder(config.getInt(
+				"epcDecoding.cacheSize", 65536)) : null;
+
+		voting = ReadPointVoting.getPolicy(config.getString("voting", "none"));
+
+		String fields = config.getString("readFields", "").trim();
+
+		List<String> requested = new ArrayList<String>();
+
+		if (fields.length() > 0) {
+			requested.addAll(Arrays.asList(fields.toUpperCase().split("\\s+")));
+		}
+
+		if (voting != ReadPointVoting.NONE) {
+			// The vote needs the antenna, read count and signal of each tag
+			String[] voteFields = { BRIReadResult.ANT, BRIReadResult.COUNT, BRIReadResult.RSSI };
+
+			for (String field : voteFields) {
+				if (!requested.contains(field)) {
+					requested.add(field);
+				}
+			}
+		}
+
+		readFields = requested.toArray(new String[requested.size()]);
+
+		String readCommand = readFields.length == 0 ? "R" : "R TAGID " + StringUtils.join(readFields, " ");
+
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		Map<String, String> commands = new LinkedHashMap<String, String>();
+		Map<String, String> antennaSources = new LinkedHashMap<String, String>();
+
+		int numberOfSources = config.getMaxIndex("logicalSource") + 1;
+
+		if (numberOfSources > MAX_SOURCES) {
+			numberOfSources = MAX_SOURCES;
+		}
+
+		for (int i = 0; i < numberOfSources; i++) {
+			// key to current read point
+			String key = "logicalSource(" + i + ")";
+
+			// read point name
+			String logicalSourceName = config.getString(key + ".name");
+
+			log.debug("Property found: " + key + ".name = " + logicalSourceName);
+
+			// The associated antennas to this sourceName
+			String[] antennas = config.getStringArray(key + ".antennas");
+
+			// the source name maps to the full string of antennas separated with "commas"
+			String antennaList = StringUtils.join(antennas, ",");
+			sources.put(logicalSourceName, antennaList);
+
+			// Reading only for the configured antennas
+			commands.put(logicalSourceName, "ATTRIB ANTS=" + antennaList + ";" + readCommand);
+
+			for (String antenna : antennas) {
+
+				log.debug("Property found: " + key + ".antennas = " + antenna);
+
+				// associating each antenna to the sourceName
+				antennaSources.put(antenna, logicalSourceName);
+			}
+		}
+
+		logicalSources = Collections.unmodifiableMap(sources);
+		readCommands = Collections.unmodifiableMap(commands);
+		antennaNames = Collections.unmodifiableMap(antennaSources);
+		readPointNames = sources.keySet().toArray(new String[sources.size()]);
+
+		startupTimeout = config.getLong("startupTimeout", getWorstCaseStartup());
+
+		epcIdType = IDType.getIdType("EPC", idTypesConfig);
+
+		byte[] tid = { (byte) 0x000 };
+		epcTransponderModel = EPCTransponderModel.getEpcTrasponderModel(tid, epcTransponderModelsConfig);
+		epcTagDescriptor = epcTransponderModel == null ? null : newTagDescriptor(epcTransponderModel);
+
+		Map<String, String> params = new LinkedHashMap<String, String>();
+
+		@SuppressWarnings("rawtypes")
+		Iterator it = config.getKeys();
+
+		while (it.hasNext()) {
+			Object item = it.next();
+
+			if (String.class.isInstance(item)) {
+				params.put((String) item, config.getString((String) item));
+			}
+		}
+
+		parameters = Collections.unmodifiableMap(params);
+		parameterNames = params.keySet().toArray(new String[params.size()]);
+
+		this.config = config;
+	}
+
+	/**
+	 * Returns the tag descriptor of the given model, the one of the
+	 * configured model is shared by all the tags
+	 *
+	 * @param tagModel
+	 * @return
+	 */
+	TagDescriptor getTagDescriptor(EPCTransponderModel tagModel) {
+
+		if (tagModel == epcTransponderModel) {
+			return epcTagDescriptor;
+		}
+		return newTagDescriptor(tagModel);
+	}
+
+	private TagDescriptor newTagDescriptor(EPCTransponderModel tagModel) {
+
+		MemoryBankDescriptor[] memoryBankDescriptors = new MemoryBankDescriptor[4];
+		memoryBankDescriptors[0] = new MemoryBankDescriptor(tagModel.getReservedSize(),
+				tagModel.getReservedReadable(), tagModel.getReservedWriteable());
+		memoryBankDescriptors[1] = new MemoryBankDescriptor(tagModel.getEpcSize(), tagModel.getEpcReadable(),
+				tagModel.getEpcWriteable());
+		memoryBankDescriptors[2] = new MemoryBankDescriptor(tagModel.getTidSize(), tagModel.getTidReadable(),
+				tagModel.getTidWriteable());
+		memoryBankDescriptors[3] = new MemoryBankDescriptor(tagModel.getUserSize(), tagModel.getUserReadable(),
+				tagModel.getUserWriteable());
+
+		MemoryDescriptor memoryDescriptor = new MemoryDescriptor(memoryBankDescriptors);
+
+		return new TagDescriptor(epcIdType, memoryDescriptor);
+	}
+
+	/**
+	 * Longest a startup attempt can take: the connect timeout, the banner, the
+	 * resync after a late banner, arming the input trigger and one warm up
+	 * read per logical source
+	 *
+	 * @return
+	 */
+	private long getWorstCaseStartup() {
+
+		long worstCase = (long) timeout + bannerTimeout + timeout;
+
+		if (inputTriggerMask != 0 && inputTriggerOnReader) {
+			worstCase += 2L * timeout;
+		}
+
+		if (warmUp) {
+			worstCase += (long) readPointNames.length * timeout;
+		}
+
+		return worstCase;
+	}
+
+	/**
+	 * Returns true if applying this configuration requires a new connection
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean connectionChanged(IntermecBRIConfiguration other) {
+
+		return !StringUtils.equals(host, other.host) || port != other.port || timeout != other.timeout
+				|| bannerTimeout != other.bannerTimeout || !StringUtils.equals(replayFile, other.replayFile)
+				|| selectorEngine != other.selectorEngine;
+	}
+
+	/**
+	 * Returns true if applying this configuration requires a new traffic
+	 * capture, it's bound to the connection
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean recorderChanged(IntermecBRIConfiguration other) {
+
+		return !StringUtils.equals(recordFile, other.recordFile) || !StringUtils.equals(replayFile, other.replayFile);
+	}
+
+	/**
+	 * Returns true if applying this configuration requires a new snapshot
+	 * publisher
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean publisherChanged(IntermecBRIConfiguration other) {
+
+		return !StringUtils.equals(snapshotFile, other.snapshotFile) || snapshotSize != other.snapshotSize;
+	}
+
+	/**
+	 * Returns true if applying this configuration requires loading the known
+	 * tag filter again
+	 *
+	 * @param other
+	 * @return
+	 */
+	boolean knownTagsChanged(IntermecBRIConfiguration other) {
+
+		return !StringUtils.equals(knownTagsFile, other.knownTagsFile) || knownTagsExpected != other.knownTagsExpected
+				|| knownTagsFalsePositiveRate != other.knownTagsFalsePositiveRate;
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+}
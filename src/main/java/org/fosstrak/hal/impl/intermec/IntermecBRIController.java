@@ -3,21 +3,36 @@
  */
 package org.fosstrak.hal.impl.intermec;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.fosstrak.hal.AsynchronousIdentifyListener;
 import org.fosstrak.hal.HardwareException;
-import org.fosstrak.hal.MemoryBankDescriptor;
-import org.fosstrak.hal.MemoryDescriptor;
 import org.fosstrak.hal.Observation;
 import org.fosstrak.hal.OutOfBoundsException;
 import org.fosstrak.hal.ReadPointNotFoundException;
@@ -25,9 +40,13 @@ import org.fosstrak.hal.TagDescriptor;
 import org.fosstrak.hal.Trigger;
 import org.fosstrak.hal.UnsignedByteArray;
 import org.fosstrak.hal.UnsupportedOperationException;
+import org.fosstrak.hal.impl.intermec.connector.BRIConnectionEngine;
+import org.fosstrak.hal.impl.intermec.connector.BRIConnector;
+import org.fosstrak.hal.impl.intermec.connector.BRIFlightRecorder;
+import org.fosstrak.hal.impl.intermec.connector.BRIReadResult;
+import org.fosstrak.hal.impl.intermec.connector.BRIReplayConnector;
+import org.fosstrak.hal.impl.intermec.connector.BRITrafficRecorder;
 import org.fosstrak.hal.impl.intermec.connector.TCPBRISocketConnector;
-import org.fosstrak.hal.transponder.EPCTransponderModel;
-import org.fosstrak.hal.transponder.IDType;
 import org.fosstrak.hal.transponder.InventoryItem;
 import org.fosstrak.hal.transponder.RFTechnology;
 import org.fosstrak.hal.transponder.TransponderType;
@@ -42,9 +61,15 @@ public class IntermecBRIController implements IntermecController {
 	static Logger log = Logger.getLogger(IntermecBRIController.class);
 
 	/**
-	 * The TCP/IP connector that understand BRI protocol
+	 * Transponder type and RF technology of the reported tags, EPCclass1gen2
 	 */
-	private TCPBRISocketConnector connector;
+	private static final TransponderType EPC_TRANSPONDER_TYPE = TransponderType.getType((byte) 0x84);
+	private static final RFTechnology EPC_RF_TECHNOLOGY = RFTechnology.getType((byte) 0x84);
+
+	/**
+	 * The connector that understand BRI protocol
+	 */
+	private volatile BRIConnector connector;
 
 	/**
 	 * HAL name
@@ -52,41 +77,109 @@ public class IntermecBRIController implements IntermecController {
 	private String halName;
 
 	/**
-	 * BRI Network properties
+	 * Traffic capture, a replay file replaces the reader
 	 */
-	private String host;
-	private int port;
-	private int timeout;
+	private BRITrafficRecorder recorder;
 
 	/**
-	 * 
+	 * Last events of all the connections to the reader, it outlives the
+	 * reconnections so a reset keeps the history before it
+	 */
+	private final BRIFlightRecorder flightRecorder = new BRIFlightRecorder();
+
+	/**
+	 * Configuration the recorder was opened with
+	 */
+	private IntermecBRIConfiguration recorderConfiguration;
+
+	/**
+	 * Publisher of the inventories for the local processes
+	 */
+	private volatile InventorySnapshotPublisher snapshotPublisher;
+
+	/**
+	 * Completes when the reader is connected and warmed up
+	 */
+	private volatile Future<Boolean> ready;
+
+	/**
+	 * Held by a startup attempt, so a cancelled one is never half done
 	 */
-	private boolean isConnected = false;
+	private final Object startupLock = new Object();
+
+	/**
+	 * Why the last attempt of a startup that is retrying failed
+	 */
+	private volatile HardwareException startupFailure;
+
+	/**
+	 * Shared by all the controllers so they connect in parallel
+	 */
+	private static final ExecutorService startupExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "IntermecBRIController-startup");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Checks the configuration files of all the controllers for changes
+	 */
+	private static final ScheduledExecutorService configWatcher = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "IntermecBRIController-configWatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 	/**
 	 * The configuration files
 	 */
 	private String defaultConfigFile = "/props/IntermecBRIController_default.xml";
 	private String configFile;
-	private String epcTransponderModelsConfig;
 
 	/**
-	 * The configuration
+	 * The compiled configuration, replaced as a whole when the configuration
+	 * file changes
 	 */
-	private XMLConfiguration config = null;
+	private volatile IntermecBRIConfiguration snapshot;
 
-	private HashMap<String, InventoryItem> currentInventory = new HashMap<String, InventoryItem>();
+	/**
+	 * The configuration file being watched and its last modification
+	 */
+	private File watchedConfigFile;
+	private long configLastModified;
+	private ScheduledFuture<?> configWatch;
 
 	/**
-	 * Number of read points
+	 * Asynchronous identify and its listeners
 	 */
-	private int numberOfSources = 0;
+	private final CopyOnWriteArrayList<AsynchronousIdentifyListener> listeners = new CopyOnWriteArrayList<AsynchronousIdentifyListener>();
+	private AsynchronousIdentifyRunner asynchronousIdentify;
 
 	/**
-	 * Logical read points
+	 * Name of the input trigger defined in the reader
 	 */
-	private HashMap<String, String> logicalSources;
-	private HashMap<String, String> antennaNames;
+	private static final String INPUT_TRIGGER_NAME = "fosstrakInput";
+
+	/**
+	 * True if the reader reports the input trigger, and nanoTime until the
+	 * input is considered active after the last firing
+	 */
+	private volatile boolean readerTriggerArmed = false;
+	private volatile long inputTriggerActiveUntil = System.nanoTime();
+
+	/**
+	 * Filter of the commissioned tags, null if the tags are not filtered, and
+	 * the listeners of the tags it rejects
+	 */
+	private volatile KnownTagFilter knownTagFilter;
+	private final CopyOnWriteArrayList<UnknownTagListener> unknownTagListeners = new CopyOnWriteArrayList<UnknownTagListener>();
 
 	/**
 	 * 
@@ -100,85 +193,473 @@ public class IntermecBRIController implements IntermecController {
 		
 		try {
 			log.info("Trying to initialize " + halName);
-			this.initialize();
-			
+			loadConfiguration();
+
+			// The connection is established in background, controllers
+			// created together connect in parallel
+			FutureTask<Boolean> task = newStartupTask(true);
+			ready = task;
+			startupExecutor.execute(task);
+
 		} catch (Exception e) {
 			log.error("Reader initialization failed", e);
 		}
 	}
 
 	/**
-	 * Initialize a reader.
+	 * Initialize a reader, unlike the constructor this method blocks until
+	 * the reader is connected and warmed up.
 	 * 
 	 * @throws HardwareException
 	 */
 	public void initialize() throws HardwareException {
 
+		cancelStartup();
+		closeConnector();
+
+		loadConfiguration();
+
+		FutureTask<Boolean> task = newStartupTask(false);
+		ready = task;
+		task.run();
+
+		awaitReady(0);
+	}
+
+	/**
+	 * Reads and compiles the configuration file
+	 * 
+	 * @throws HardwareException
+	 */
+	protected void loadConfiguration() throws HardwareException {
+
 		// read parameters from configuration file
-		this.config = new XMLConfiguration();
-		config.setListDelimiter(',');
 		URL fileurl = ResourceLocator.getURL(configFile, defaultConfigFile, this.getClass());
 
 		try {
+			snapshot = compileConfiguration(fileurl);
+
+		} catch (ConfigurationException e) {
+			String message = "Error in reader property file";
+			log.error("initialize: " + message, e);
+			throw new HardwareException(message, e);
+		}
+
+		openRecorder(snapshot);
+		openSnapshotPublisher(snapshot);
+
+		watchConfiguration(fileurl);
+	}
+
+	/**
+	 * Replaces the traffic capture, the connection must be closed
+	 * 
+	 * @param conf
+	 */
+	private void openRecorder(IntermecBRIConfiguration conf) {
+
+		recorderConfiguration = conf;
+
+		try {
+			if (recorder != null) {
+				recorder.close();
+				recorder = null;
+			}
 
-			config.load(fileurl);
+			if (conf.recordFile != null && conf.replayFile == null) {
+				recorder = new BRITrafficRecorder(new File(conf.recordFile));
+			}
 
-			host = config.getString("host");
-			port = config.getInt("port", 2189);
-			timeout = config.getInt("timeout");
+		} catch (IOException e) {
+			log.error("openRecorder: Error creating capture file " + conf.recordFile
+					+ ", traffic won't be recorded", e);
+		}
+	}
 
-			epcTransponderModelsConfig = config.getString("epcTransponderModelsConfig");
+	/**
+	 * Replaces the publisher of the inventories
+	 * 
+	 * @param conf
+	 */
+	private void openSnapshotPublisher(IntermecBRIConfiguration conf) {
 
-			logicalSources = new HashMap<String, String>();
-			antennaNames = new HashMap<String, String>();
-			numberOfSources = config.getMaxIndex("logicalSource") + 1;
+		try {
+			if (snapshotPublisher != null) {
+				snapshotPublisher.close();
+				snapshotPublisher = null;
+			}
 
-			if (numberOfSources > 4) {
-				numberOfSources = 4;
+			if (conf.snapshotFile != null) {
+				snapshotPublisher = new InventorySnapshotPublisher(new File(conf.snapshotFile), conf.snapshotSize);
 			}
 
-			for (int i = 0; i < numberOfSources; i++) {
-				// key to current read point
-				String key = "logicalSource(" + i + ")";
+		} catch (IOException e) {
+			log.error("openSnapshotPublisher: Error creating snapshot file " + conf.snapshotFile
+					+ ", inventories won't be published", e);
+		}
+	}
+
+	private IntermecBRIConfiguration compileConfiguration(URL fileurl) throws ConfigurationException {
+
+		XMLConfiguration config = new XMLConfiguration();
+		config.setListDelimiter(',');
+		config.load(fileurl);
+
+		return new IntermecBRIConfiguration(config);
+	}
+
+	/**
+	 * Starts checking the configuration file for changes, only files in the
+	 * file system can be watched
+	 * 
+	 * @param fileurl
+	 */
+	private synchronized void watchConfiguration(final URL fileurl) {
+
+		if (configWatch != null) {
+			configWatch.cancel(false);
+			configWatch = null;
+		}
+
+		if (snapshot.reloadInterval <= 0) {
+			return;
+		}
 
-				// read point name
-				String logicalSourceName = config.getString(key + ".name");
+		if (!"file".equals(fileurl.getProtocol())) {
+			log.warn("Configuration " + fileurl + " is not a file, it won't be reloaded");
+			return;
+		}
 
-				log.debug("Property found: " + key + ".name = " + logicalSourceName);
-				
-				// The associated antennas to this sourceName
-				String[] antennas = config.getStringArray(key + ".antennas");
+		try {
+			watchedConfigFile = new File(fileurl.toURI());
+		} catch (URISyntaxException e) {
+			watchedConfigFile = new File(fileurl.getPath());
+		}
+		configLastModified = watchedConfigFile.lastModified();
 
-				// the source name maps to the full string of antennas separated with "commas"
-				logicalSources.put(logicalSourceName, StringUtils.join(antennas, ","));
-				
-				for (String antenna : antennas) {
-					
-					log.debug("Property found: " + key + ".antennas = " + antenna);
+		configWatch = configWatcher.scheduleWithFixedDelay(new Runnable() {
 
-					// associating each antenna to the sourceName
-					antennaNames.put(antenna, logicalSourceName);
+			public void run() {
+				reloadConfiguration(fileurl);
+			}
+		}, snapshot.reloadInterval, snapshot.reloadInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Swaps the configuration snapshot if the file changed, the connection is
+	 * kept. The snapshot publisher and the known tag filter are replaced at
+	 * once, the connection and its traffic capture on reset(). A broken file
+	 * leaves the current configuration in place.
+	 * 
+	 * @param fileurl
+	 */
+	private void reloadConfiguration(URL fileurl) {
+
+		long modified = watchedConfigFile.lastModified();
+
+		if (modified == configLastModified) {
+			return;
+		}
+		configLastModified = modified;
+
+		try {
+			IntermecBRIConfiguration next = compileConfiguration(fileurl);
+
+			IntermecBRIConfiguration previous = snapshot;
+
+			if (previous.connectionChanged(next)) {
+				log.warn("Connection properties of " + halName + " changed, they will be applied on reset()");
+			}
+
+			if (previous.recorderChanged(next)) {
+				log.warn("Traffic capture of " + halName + " changed, it will be applied on reset()");
+			}
+
+			snapshot = next;
+
+			if (previous.publisherChanged(next)) {
+				openSnapshotPublisher(next);
+			}
+
+			if (previous.knownTagsChanged(next)) {
+				try {
+					loadKnownTagFilter();
+
+				} catch (IOException e) {
+					log.error("reloadConfiguration: Error loading known tags, keeping the previous filter", e);
 				}
 			}
 
-		} catch (ConfigurationException e) {
-			String message = "Error in reader property file";
-			log.error("initialize: " + message, e);
-			throw new HardwareException(message, e);
+			log.info("Configuration of " + halName + " reloaded from " + fileurl);
+
+		} catch (Exception e) {
+			log.error("reloadConfiguration: Error in reader property file, keeping previous configuration", e);
+		}
+	}
+
+	/**
+	 * Creates the task that connects and warms up the reader, its future
+	 * tells when the reader is ready for traffic
+	 * 
+	 * @param retry
+	 *            true to try again with backoff until the reader is ready or
+	 *            the task is cancelled, the future stays pending meanwhile
+	 */
+	private FutureTask<Boolean> newStartupTask(final boolean retry) {
+
+		return new FutureTask<Boolean>(new Callable<Boolean>() {
+
+			public Boolean call() throws HardwareException, InterruptedException {
+
+				long delay = snapshot.startupRetryDelay;
+
+				while (true) {
+					try {
+						synchronized (startupLock) {
+							if (Thread.currentThread().isInterrupted()) {
+								throw new InterruptedException("Startup of " + halName + " cancelled");
+							}
+							startReader();
+						}
+						startupFailure = null;
+
+						return Boolean.TRUE;
+
+					} catch (HardwareException e) {
+						IntermecBRIConfiguration conf = snapshot;
+
+						if (!retry || conf.startupRetryDelay <= 0) {
+							throw e;
+						}
+						startupFailure = e;
+
+						log.warn("Startup of " + halName + " failed, retrying in " + delay + " ms.");
+
+						Thread.sleep(delay);
+						delay = Math.max(conf.startupRetryDelay, Math.min(delay * 2, conf.startupRetryMaxDelay));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Connects and warms up the reader, a failed attempt doesn't leave the
+	 * connection open
+	 * 
+	 * @throws HardwareException
+	 */
+	private void startReader() throws HardwareException {
+
+		if (snapshot.knownTagsFile != null && knownTagFilter == null) {
+			try {
+				loadKnownTagFilter();
+
+			} catch (IOException e) {
+				log.error("initialize: Error loading known tags, tags won't be filtered", e);
+			}
 		}
 
 		try {
-			log.info("Trying to connect to: " + host + ":" + port + " ...");
+			log.info("Trying to connect to: " + snapshot.host + ":" + snapshot.port + " ...");
 			initReader();
+			armInputTrigger();
+
+			if (snapshot.warmUp) {
+				warmUpReader();
+			}
 			log.info("Reader initialized.");
 
 		} catch (HardwareException e) {
+			closeConnector();
+
 			String message = "Error initializing reader";
 			log.error("initialize: " + message, e);
 			throw new HardwareException(message, e);
 		}
 	}
 
+	/**
+	 * Cancels a background startup that is still retrying and waits for its
+	 * attempt in progress, so it doesn't replace the connection afterwards
+	 */
+	private void cancelStartup() {
+
+		Future<Boolean> previous = ready;
+
+		if (previous != null && !previous.isDone()) {
+			previous.cancel(true);
+		}
+
+		synchronized (startupLock) {
+			startupFailure = null;
+		}
+	}
+
+	/**
+	 * Closes the connection, a replay goes on with the next connection so
+	 * it's not closed
+	 */
+	private void closeConnector() {
+
+		BRIConnector current = connector;
+
+		if (current != null && !(current instanceof BRIReplayConnector)) {
+			try {
+				current.close();
+
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Performs one read in every logical source before the reader is
+	 * declared ready, so the first real read doesn't pay the warm up cost
+	 */
+	protected void warmUpReader() {
+
+		IntermecBRIConfiguration conf = snapshot;
+
+		for (String sourceName : conf.readPointNames) {
+			try {
+				String[] tagList = connector.sendReadRequest(conf.readCommands.get(sourceName));
+
+				log.debug("Warm up read on " + sourceName + ": " + (tagList == null ? 0 : tagList.length) + " tags");
+
+			} catch (IOException e) {
+				log.warn("warmUpReader: Warm up read failed on " + sourceName, e);
+			}
+		}
+	}
+
+	/**
+	 * Loads the known tag filter from the configured file, the tags are
+	 * filtered with the new filter once it's fully loaded
+	 * 
+	 * @throws IOException
+	 */
+	public void loadKnownTagFilter() throws IOException {
+
+		IntermecBRIConfiguration conf = snapshot;
+
+		if (conf.knownTagsFile == null) {
+			knownTagFilter = null;
+			return;
+		}
+
+		knownTagFilter = KnownTagFilter.load(new File(conf.knownTagsFile), conf.knownTagsExpected,
+				conf.knownTagsFalsePositiveRate);
+	}
+
+	/**
+	 * Returns the filter of the commissioned tags, null if the tags are not
+	 * filtered. New ids can be added to it at runtime.
+	 * 
+	 * @return
+	 */
+	public KnownTagFilter getKnownTagFilter() {
+		return knownTagFilter;
+	}
+
+	/**
+	 * Replaces the filter of the commissioned tags, null stops filtering
+	 * 
+	 * @param filter
+	 */
+	public void setKnownTagFilter(KnownTagFilter filter) {
+		knownTagFilter = filter;
+	}
+
+	/**
+	 * Adds a listener of the tags rejected by the known tag filter, only
+	 * called if the controller is configured to report them
+	 * 
+	 * @param listener
+	 */
+	public void addUnknownTagListener(UnknownTagListener listener) {
+		unknownTagListeners.addIfAbsent(listener);
+	}
+
+	public void removeUnknownTagListener(UnknownTagListener listener) {
+		unknownTagListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the future that completes when the reader is connected and
+	 * ready for traffic
+	 * 
+	 * @return
+	 */
+	public Future<Boolean> getReadyFuture() {
+		return ready;
+	}
+
+	/**
+	 * Returns true if the reader is connected and ready for traffic
+	 * 
+	 * @return
+	 */
+	public boolean isReady() {
+		try {
+			return ready != null && ready.isDone() && ready.get().booleanValue();
+
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until the reader is ready for traffic
+	 * 
+	 * @param millis
+	 *            maximum time to wait, 0 to not wait at all
+	 * @throws HardwareException
+	 *             if the reader is not ready in time or its initialization
+	 *             failed
+	 */
+	public void awaitReady(long millis) throws HardwareException {
+
+		Future<Boolean> future = ready;
+
+		if (future == null) {
+			throw new HardwareException("Reader " + halName + " is not initialized");
+		}
+
+		try {
+			future.get(millis, TimeUnit.MILLISECONDS);
+
+		} catch (TimeoutException e) {
+			HardwareException failure = startupFailure;
+
+			if (failure != null) {
+				throw new HardwareException("Reader " + halName + " not ready after " + millis
+						+ " ms., still retrying", failure);
+			}
+			throw new HardwareException("Reader " + halName + " not ready after " + millis + " ms.");
+
+		} catch (CancellationException e) {
+			throw new HardwareException("Reader " + halName + " startup cancelled");
+
+		} catch (ExecutionException e) {
+			throw new HardwareException("Reader " + halName + " initialization failed", e.getCause());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HardwareException("Interrupted waiting for reader " + halName, e);
+		}
+	}
+
+	/**
+	 * Returns the last connections, commands, responses, timeouts and parsed
+	 * reads of the reader, oldest first, also the ones before a reset
+	 * 
+	 * @return
+	 */
+	public String dumpFlightRecorder() {
+		return flightRecorder.dump();
+	}
+
 	/**
 	 * Tries to connect to reader's proxy service
 	 * 
@@ -187,9 +668,27 @@ public class IntermecBRIController implements IntermecController {
 	protected void initReader() throws HardwareException {
 		try {
 
-			connector = new TCPBRISocketConnector(host, port, timeout);
+			IntermecBRIConfiguration conf = snapshot;
 
-			isConnected = connector.isConnected();
+			BRIConnector current = connector;
+
+			if (conf.replayFile != null && current instanceof BRIReplayConnector && current.isConnected()
+					&& ((BRIReplayConnector) current).getFile().equals(new File(conf.replayFile))) {
+				// A reconnection goes on with the same replay
+				((BRIReplayConnector) current).reconnect();
+			} else if (conf.replayFile != null) {
+				if (current instanceof BRIReplayConnector) {
+					current.close();
+				}
+				connector = new BRIReplayConnector(new File(conf.replayFile), conf.replayOriginalSpeed,
+						flightRecorder);
+			} else if (conf.selectorEngine) {
+				connector = BRIConnectionEngine.getDefault().connect(conf.host, conf.port, conf.timeout,
+						conf.bannerTimeout, recorder, flightRecorder);
+			} else {
+				connector = new TCPBRISocketConnector(conf.host, conf.port, conf.timeout, conf.bannerTimeout,
+						recorder, flightRecorder);
+			}
 
 		} catch (Exception e) {
 			String message = "initReader: Network communication error";
@@ -205,121 +704,199 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public Observation[] identify(String[] readPointNames) throws ReadPointNotFoundException, HardwareException {
 
-		currentInventory.clear();
+		IntermecBRIConfiguration conf = snapshot;
 
-		Observation[] observations = new Observation[readPointNames.length];
-
-		for (int i = 0; i < readPointNames.length; i++) {
+		for (String readPointName : readPointNames) {
+			if (!conf.readCommands.containsKey(readPointName)) {
+				throw new ReadPointNotFoundException("identify: Unknown read point " + readPointName);
+			}
+		}
 
-			observations[i] = new Observation();
-			observations[i].setHalName(getHALName());
-			observations[i].setReadPointName(readPointNames[i]);
+		List<List<InventoryItem>> inventories = new ArrayList<List<InventoryItem>>(readPointNames.length);
 
-			List<InventoryItem> inventory = getInventory(readPointNames[i]);
-			List<String> ids = new Vector<String>();
-			List<TagDescriptor> tds = new Vector<TagDescriptor>();
+		for (String readPointName : readPointNames) {
+			inventories.add(getInventory(conf, readPointName));
+		}
 
-			for (InventoryItem item : inventory) {
+		// Tags seen by several logical sources are only reported by one
+		conf.voting.vote(inventories);
 
-				String id = item.id;
+		BRIObservation[] observations = new BRIObservation[readPointNames.length];
 
-				if (item.transponderType == TransponderType.EPCclass1Gen2) {
+		for (int i = 0; i < readPointNames.length; i++) {
 
-					IDType idType = IDType.getIdType("EPC", config.getString("idTypesConfig"));
+			observations[i] = new BRIObservation();
+			observations[i].setHalName(getHALName());
+			observations[i].setReadPointName(readPointNames[i]);
 
-					EPCTransponderModel tagModel = item.epcTransponderModel;
+			List<InventoryItem> inventory = inventories.get(i);
 
-					MemoryBankDescriptor[] memoryBankDescriptors = new MemoryBankDescriptor[4];
-					memoryBankDescriptors[0] = new MemoryBankDescriptor(tagModel.getReservedSize(),
-							tagModel.getReservedReadable(), tagModel.getReservedWriteable());
-					memoryBankDescriptors[1] = new MemoryBankDescriptor(tagModel.getEpcSize(),
-							tagModel.getEpcReadable(), tagModel.getEpcWriteable());
-					memoryBankDescriptors[2] = new MemoryBankDescriptor(tagModel.getTidSize(),
-							tagModel.getTidReadable(), tagModel.getTidWriteable());
-					memoryBankDescriptors[3] = new MemoryBankDescriptor(tagModel.getUserSize(),
-							tagModel.getUserReadable(), tagModel.getUserWriteable());
+			int len = inventory.size();
+			String[] ids_arr = new String[len];
+			TagDescriptor[] tds_arr = new TagDescriptor[len];
+			int tdsCount = 0;
 
-					MemoryDescriptor memoryDescriptor = new MemoryDescriptor(memoryBankDescriptors);
+			for (int j = 0; j < len; j++) {
 
-					TagDescriptor td = new TagDescriptor(idType, memoryDescriptor);
+				InventoryItem item = inventory.get(j);
 
-					tds.add(td);
+				if (item.transponderType == TransponderType.EPCclass1Gen2) {
+					tds_arr[tdsCount++] = conf.getTagDescriptor(item.epcTransponderModel);
 				}
 
 				item.readPoint = readPointNames[i];
-				ids.add(id);
-				currentInventory.put(id, item);
+				ids_arr[j] = item.id;
 			}
 
-			int len = ids.size();
-			String[] ids_arr = new String[len];
-			ids_arr = ids.toArray(ids_arr);
-
-			if (tds.size() == len) {
-				TagDescriptor[] tds_arr = new TagDescriptor[len];
-				tds_arr = tds.toArray(tds_arr);
+			if (tdsCount == len) {
 				observations[i].setTagDescriptors(tds_arr);
 			}
 			observations[i].setIds(ids_arr);
-			observations[i].setTimestamp(System.currentTimeMillis());
+			if (conf.epcDecoder != null) {
+				observations[i].setUris(conf.epcDecoder.decode(ids_arr));
+			}
+			if (conf.readFields.length > 0) {
+				setFields(observations[i], inventory);
+			}
+
+			// Time the reader answered, not the time the inventory was built
+			if (inventory instanceof TimedInventory) {
+				observations[i].setTimestamp(((TimedInventory) inventory).received);
+			} else {
+				observations[i].setTimestamp(System.currentTimeMillis());
+			}
+		}
+
+		InventorySnapshotPublisher publisher = snapshotPublisher;
+
+		if (publisher != null) {
+			publisher.publish(getHALName(), observations);
 		}
 
 		return observations;
 	}
 
+	/**
+	 * Copies the per tag fields of the inventory items to the observation
+	 * columns
+	 * 
+	 * @param observation
+	 * @param inventory
+	 */
+	private static void setFields(BRIObservation observation, List<InventoryItem> inventory) {
+
+		int len = inventory.size();
+
+		int[] antennas = new int[len];
+		int[] readCounts = new int[len];
+		int[] rssis = new int[len];
+		long[] times = new long[len];
+
+		for (int j = 0; j < len; j++) {
+			InventoryItem item = inventory.get(j);
+
+			if (item instanceof BRIInventoryItem) {
+				BRIInventoryItem briItem = (BRIInventoryItem) item;
+
+				antennas[j] = briItem.antenna;
+				readCounts[j] = briItem.readCount;
+				rssis[j] = briItem.rssi;
+				times[j] = briItem.time;
+
+			} else {
+				antennas[j] = BRIReadResult.UNKNOWN;
+				readCounts[j] = BRIReadResult.UNKNOWN;
+				rssis[j] = BRIReadResult.UNKNOWN;
+				times[j] = BRIReadResult.UNKNOWN;
+			}
+		}
+
+		observation.setFields(antennas, readCounts, rssis, times);
+	}
+
+	/**
+	 * Inventory with the time the reader answered its last read
+	 */
+	private static class TimedInventory extends Vector<InventoryItem> {
+
+		private static final long serialVersionUID = 1L;
+
+		long received = System.currentTimeMillis();
+	}
+
 	/**
 	 * 
 	 * @param sourceName
 	 * @return
 	 * @throws HardwareException
 	 */
-	synchronized protected List<InventoryItem> getInventory(String sourceName) throws HardwareException {
+	protected List<InventoryItem> getInventory(String sourceName) throws HardwareException {
+		return getInventory(snapshot, sourceName);
+	}
 
-		List<InventoryItem> inventory = new Vector<InventoryItem>();
+	/**
+	 * Reads the inventory of a logical source with the given configuration,
+	 * all the sources of an identify are read with the same one even if the
+	 * configuration is reloaded meanwhile
+	 * 
+	 * @param conf
+	 * @param sourceName
+	 * @return
+	 * @throws HardwareException
+	 */
+	synchronized List<InventoryItem> getInventory(IntermecBRIConfiguration conf, String sourceName)
+			throws HardwareException {
 
-		// set transponder type to EPCclass1gen2
-		byte trType = (byte) 0x84;
+		TimedInventory inventory = new TimedInventory();
 
-		if (!isConnected) {
-			// Returning empty inventory
-			return null;
-		}
+		// Traffic is admitted once the reader is connected and warmed up
+		awaitReady(conf.startupTimeout);
 
 		try {
 
-			// Getting the logical source associated antennas
-			String antennas = logicalSources.get(sourceName);
-
 			// Reading only for the configured antennas
-			String command = "ATTRIB ANTS=" + antennas + ";R";
+			String command = conf.readCommands.get(sourceName);
 
-			String[] tagList = connector.sendReadRequest(command);
+			// Tags not commissioned are rejected before creating their items
+			KnownTagFilter filter = knownTagFilter;
+			Set<String> unknownTags = filter != null && conf.reportUnknownTags ? new LinkedHashSet<String>() : null;
 
-			if (tagList == null) {
-				return inventory;
-			}
+			Map<String, InventoryItem> items = new HashMap<String, InventoryItem>();
 
-			log.debug("Inventory size: " + tagList.length);
+			// Adaptive inventory: the rounds go on while they find enough new
+			// tags and there is time left for another one
+			long start = System.nanoTime();
+			long deadline = start + conf.inventoryTimeBudget * 1000000L;
+			int rounds = 0;
+			int newTags;
 
-			for (String tagid : tagList) {
+			while (true) {
+				long roundStart = System.nanoTime();
 
-				InventoryItem item = new InventoryItem();
+				newTags = readRound(conf, sourceName, command, filter, unknownTags, items, inventory);
+				rounds++;
 
-				item.transponderType = TransponderType.getType(trType);
-				item.rfTechnology = RFTechnology.getType(trType);
+				long now = System.nanoTime();
 
-				byte[] tid = { (byte) 0x000 };
-				item.tid = tid;
+				if (rounds >= conf.inventoryMaxRounds || newTags < conf.inventoryNewTagThreshold
+						|| now + (now - roundStart) > deadline) {
+					break;
+				}
+			}
 
-				item.epcTransponderModel = EPCTransponderModel.getEpcTrasponderModel(item.tid,
-						epcTransponderModelsConfig);
+			if (unknownTags != null && !unknownTags.isEmpty()) {
+				fireUnknownTags(sourceName, unknownTags.toArray(new String[unknownTags.size()]));
+			}
 
-				item.id = tagid;
-				item.readPoint = sourceName;
+			if (rounds > 1 && log.isDebugEnabled()) {
+				log.debug("Inventory of " + sourceName + ": " + rounds + " rounds in "
+						+ (System.nanoTime() - start) / 1000000 + " ms, " + newTags + " new tags in the last one");
+			}
 
-				inventory.add(item);
+			if (log.isDebugEnabled()) {
+				log.debug("Inventory size: " + inventory.size());
 			}
-			
+
 			try {
 				Thread.sleep(50);
 			} catch (InterruptedException e) {
@@ -330,13 +907,137 @@ public class IntermecBRIController implements IntermecController {
 			return inventory;
 
 		} catch (Exception e) {
+			throw new HardwareException("getInventory: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads one inventory round and merges it into the items already read,
+	 * the rows of a tag read by several antennas or rounds are merged into one
+	 * item
+	 * 
+	 * @param conf
+	 * @param sourceName
+	 * @param command
+	 * @param filter
+	 *            known tag filter, null to accept all the tags
+	 * @param unknownTags
+	 *            collects the tags rejected by the filter, can be null
+	 * @param items
+	 *            items read by the previous rounds, by tag id
+	 * @param inventory
+	 *            gets the new items and the time the response was received,
+	 *            before it's parsed
+	 * @return number of tags not read by the previous rounds
+	 * @throws IOException
+	 */
+	private int readRound(IntermecBRIConfiguration conf, String sourceName, String command, KnownTagFilter filter,
+			Set<String> unknownTags, Map<String, InventoryItem> items, TimedInventory inventory) throws IOException {
 
-			// isConnected = false;
+		int newTags = 0;
 
-			throw new HardwareException("getInventory: " + e.getMessage(), e);
+		if (conf.readFields.length > 0) {
+
+			BRIReadResult result = connector.sendReadRequest(command, conf.readFields);
+			inventory.received = result.getReceived();
+
+			for (int row = 0; row < result.size(); row++) {
+
+				String tagid = result.getId(row);
+				BRIInventoryItem item = (BRIInventoryItem) items.get(tagid);
+
+				if (item == null) {
+
+					if (filter != null && !filter.mightContain(tagid)) {
+						if (unknownTags != null) {
+							unknownTags.add(tagid);
+						}
+						continue;
+					}
+
+					item = new BRIInventoryItem();
+					newInventoryItem(conf, item, tagid, sourceName);
+
+					items.put(tagid, item);
+					inventory.add(item);
+					newTags++;
+				}
+
+				item.merge(result, row);
+			}
+
+		} else {
+
+			String[] tagList = connector.sendReadRequest(command);
+			inventory.received = System.currentTimeMillis();
+
+			if (tagList == null) {
+				return 0;
+			}
+
+			for (String tagid : tagList) {
+
+				if (items.containsKey(tagid)) {
+					continue;
+				}
+
+				if (filter != null && !filter.mightContain(tagid)) {
+					if (unknownTags != null) {
+						unknownTags.add(tagid);
+					}
+					continue;
+				}
+
+				InventoryItem item = newInventoryItem(conf, new InventoryItem(), tagid, sourceName);
+
+				items.put(tagid, item);
+				inventory.add(item);
+				newTags++;
+			}
+		}
+
+		return newTags;
+	}
+
+	private void fireUnknownTags(String sourceName, String[] ids) {
+
+		for (UnknownTagListener listener : unknownTagListeners) {
+			try {
+				listener.unknownTagsRead(halName, sourceName, ids);
+
+			} catch (RuntimeException e) {
+				log.error("Error in unknown tag listener " + listener, e);
+			}
 		}
 	}
 
+	/**
+	 * Fills a new inventory item for a tag
+	 * 
+	 * @param conf
+	 * @param item
+	 * @param tagid
+	 * @param sourceName
+	 * @return
+	 */
+	private InventoryItem newInventoryItem(IntermecBRIConfiguration conf, InventoryItem item, String tagid,
+			String sourceName) {
+
+		// set transponder type to EPCclass1gen2
+		item.transponderType = EPC_TRANSPONDER_TYPE;
+		item.rfTechnology = EPC_RF_TECHNOLOGY;
+
+		byte[] tid = { (byte) 0x000 };
+		item.tid = tid;
+
+		item.epcTransponderModel = conf.epcTransponderModel;
+
+		item.id = tagid;
+		item.readPoint = sourceName;
+
+		return item;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -347,7 +1048,36 @@ public class IntermecBRIController implements IntermecController {
 	public void startAsynchronousIdentify(String[] readPointNames, Trigger trigger) throws ReadPointNotFoundException,
 			HardwareException, UnsupportedOperationException {
 
-		throw new UnsupportedOperationException("startAsynchronousIdentify: Unsupported method");
+		for (String readPointName : readPointNames) {
+			if (!snapshot.readCommands.containsKey(readPointName)) {
+				throw new ReadPointNotFoundException("startAsynchronousIdentify: Unknown read point " + readPointName);
+			}
+		}
+
+		long period;
+
+		if (trigger.getType() == Trigger.TIMER) {
+			period = trigger.getInteral();
+
+			if (period <= 0) {
+				throw new HardwareException("startAsynchronousIdentify: Invalid timer interval " + period);
+			}
+
+		} else {
+			period = 0;
+		}
+
+		synchronized (listeners) {
+			stopAsynchronousIdentify();
+
+			// Two runners must never drive the reader at once
+			if (asynchronousIdentify != null) {
+				throw new HardwareException("startAsynchronousIdentify: Previous asynchronous identify still running");
+			}
+
+			asynchronousIdentify = new AsynchronousIdentifyRunner(this, readPointNames.clone(), period, listeners);
+			asynchronousIdentify.start();
+		}
 	}
 
 	/*
@@ -357,7 +1087,11 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public void stopAsynchronousIdentify() throws HardwareException, UnsupportedOperationException {
 
-		throw new UnsupportedOperationException("stopAsynchronousIdentify: Unsupported method");
+		synchronized (listeners) {
+			if (asynchronousIdentify != null && asynchronousIdentify.stop(snapshot.timeout)) {
+				asynchronousIdentify = null;
+			}
+		}
 	}
 
 	/*
@@ -367,7 +1101,9 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public boolean isAsynchronousIdentifyRunning() throws HardwareException, UnsupportedOperationException {
 
-		return false;
+		AsynchronousIdentifyRunner runner = asynchronousIdentify;
+
+		return runner != null && runner.isRunning();
 	}
 
 	/*
@@ -380,7 +1116,7 @@ public class IntermecBRIController implements IntermecController {
 	public void addAsynchronousIdentifyListener(AsynchronousIdentifyListener listener) throws HardwareException,
 			UnsupportedOperationException {
 
-		throw new UnsupportedOperationException("addAsynchronousIdentifyListener: Unsupported method");
+		listeners.addIfAbsent(listener);
 	}
 
 	/*
@@ -393,7 +1129,7 @@ public class IntermecBRIController implements IntermecController {
 	public void removeAsynchronousIdentifyListener(AsynchronousIdentifyListener listener) throws HardwareException,
 			UnsupportedOperationException {
 
-		throw new UnsupportedOperationException("removeAsynchronousIdentifyListener: Unsupported method");
+		listeners.remove(listener);
 	}
 
 	/*
@@ -403,7 +1139,172 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public boolean supportsAsynchronousIdentify() {
 
-		return false;
+		return true;
+	}
+
+	/**
+	 * Defines and arms the input trigger in the reader, so the reader reports
+	 * the input with an event instead of being polled. If the reader rejects
+	 * the trigger, the input is polled.
+	 */
+	protected void armInputTrigger() {
+
+		IntermecBRIConfiguration conf = snapshot;
+
+		readerTriggerArmed = false;
+
+		if (conf.inputTriggerMask == 0 || !conf.inputTriggerOnReader) {
+			return;
+		}
+
+		try {
+			String response = connector.sendRequest("TRIGGER \"" + INPUT_TRIGGER_NAME + "\" GPIO "
+					+ conf.inputTriggerMask + " " + conf.inputTriggerValue);
+
+			if (response.startsWith("ERR")) {
+				log.warn("armInputTrigger: Trigger rejected by the reader, the input will be polled: " + response);
+				return;
+			}
+
+			readerTriggerArmed = rearmInputTrigger();
+
+		} catch (IOException e) {
+			log.warn("armInputTrigger: Error defining the trigger, the input will be polled", e);
+		}
+	}
+
+	/**
+	 * Triggers fire once, they are armed again after every event
+	 */
+	private boolean rearmInputTrigger() throws IOException {
+
+		String response = connector.sendRequest("TRIGGERREADY " + INPUT_TRIGGER_NAME);
+
+		if (response.startsWith("ERR")) {
+			log.warn("rearmInputTrigger: Trigger not armed, the input will be polled: " + response);
+			readerTriggerArmed = false;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Handles an event of the reader, the firing of the input trigger keeps
+	 * the input active for the hold time
+	 */
+	private void handleEvent(String event) throws IOException {
+
+		if (event.startsWith("EVT:TRIGGER ") && event.indexOf(INPUT_TRIGGER_NAME) > 0) {
+			inputTriggerActiveUntil = System.nanoTime() + snapshot.inputTriggerHoldTime * 1000000L;
+			rearmInputTrigger();
+
+		} else if (log.isDebugEnabled()) {
+			log.debug("Event ignored: " + event);
+		}
+	}
+
+	/**
+	 * Waits for the reader input to become active, without any traffic when
+	 * the reader reports it with a trigger
+	 * 
+	 * @param millis
+	 *            maximum wait
+	 * @return false if interrupted
+	 * @throws HardwareException
+	 */
+	boolean awaitInputTrigger(long millis) throws HardwareException {
+
+		if (!readerTriggerArmed) {
+			try {
+				Thread.sleep(millis);
+				return true;
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		try {
+			String event = connector.pollEvent(millis);
+
+			if (event != null) {
+				handleEvent(event);
+			}
+
+			return !Thread.currentThread().isInterrupted();
+
+		} catch (IOException e) {
+			throw new HardwareException("awaitInputTrigger: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns true if the configured reader input is active, or if there is
+	 * no input trigger configured. If the input state can't be read the
+	 * reads are not blocked.
+	 * 
+	 * @return
+	 * @throws HardwareException
+	 */
+	boolean isInputTriggerActive() throws HardwareException {
+
+		IntermecBRIConfiguration conf = snapshot;
+
+		if (conf.inputTriggerMask == 0) {
+			return true;
+		}
+
+		awaitReady(conf.startupTimeout);
+
+		if (readerTriggerArmed) {
+			try {
+				String event;
+
+				while ((event = connector.pollEvent(0)) != null) {
+					handleEvent(event);
+				}
+
+			} catch (IOException e) {
+				throw new HardwareException("isInputTriggerActive: " + e.getMessage(), e);
+			}
+
+			return System.nanoTime() - inputTriggerActiveUntil < 0;
+		}
+
+		String response;
+
+		try {
+			response = connector.sendRequest(conf.inputTriggerCommand).trim();
+
+		} catch (IOException e) {
+			throw new HardwareException("isInputTriggerActive: " + e.getMessage(), e);
+		}
+
+		// The input state is the last value of the response
+		String[] tokens = response.split("\\s+");
+
+		try {
+			int state = Integer.decode(tokens[tokens.length - 1]).intValue();
+
+			return (state & conf.inputTriggerMask) == conf.inputTriggerValue;
+
+		} catch (NumberFormatException e) {
+			log.warn("isInputTriggerActive: Unexpected response to " + conf.inputTriggerCommand + ": " + response);
+			return true;
+		}
+	}
+
+	/**
+	 * Returns true if the input is reported by a trigger of the reader
+	 * instead of being polled
+	 * 
+	 * @return
+	 */
+	boolean isReaderTriggerArmed() {
+		return readerTriggerArmed;
+	}
+
+	long getInputTriggerPollInterval() {
+		return snapshot.inputTriggerPollInterval;
 	}
 
 	/*
@@ -513,7 +1414,11 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public String[] getReadPointNames() {
 
-		return logicalSources.keySet().toArray(new String[logicalSources.size()]);
+		String[] names = snapshot.readPointNames;
+		String[] namesarray = new String[names.length];
+		System.arraycopy(names, 0, namesarray, 0, names.length);
+
+		return namesarray;
 	}
 
 	/*
@@ -522,29 +1427,12 @@ public class IntermecBRIController implements IntermecController {
 	 * @see org.fosstrak.hal.HardwareAbstraction#getAllParameterNames()
 	 */
 	public String[] getAllParameterNames() throws HardwareException, UnsupportedOperationException {
-		try {
-			@SuppressWarnings("rawtypes")
-			Iterator it = config.getKeys();
-			List<String> names = new Vector<String>();
-			Object item;
-
-			while (it.hasNext()) {
-				item = it.next();
-
-				if (String.class.isInstance(item)) {
-					names.add((String) item);
-				}
-			}
 
-			String[] namesarray = new String[names.size()];
-			namesarray = names.toArray(namesarray);
+		String[] names = snapshot.parameterNames;
+		String[] namesarray = new String[names.length];
+		System.arraycopy(names, 0, namesarray, 0, names.length);
 
-			return namesarray;
-
-		} catch (Exception e) {
-			log.error("getAllParameterNames: Error gettings parameter names", e);
-			throw new HardwareException("Error getting parameter names", e);
-		}
+		return namesarray;
 	}
 
 	/*
@@ -553,10 +1441,21 @@ public class IntermecBRIController implements IntermecController {
 	 * @see org.fosstrak.hal.HardwareAbstraction#getParameter(java.lang.String)
 	 */
 	public String getParameter(String param) throws HardwareException, UnsupportedOperationException {
-		try {
-			// config file parameter
-			String value = config.getString(param);
+
+		IntermecBRIConfiguration conf = snapshot;
+
+		// config file parameter
+		String value = conf.parameters.get(param);
+
+		if (value != null || conf.parameters.containsKey(param)) {
 			return value;
+		}
+
+		// indexed keys are not in the parameters
+		try {
+			synchronized (conf.config) {
+				return conf.config.getString(param);
+			}
 
 		} catch (Exception e) {
 			log.error("getParameter: Error getting parameter", e);
@@ -590,16 +1489,21 @@ public class IntermecBRIController implements IntermecController {
 	 */
 	public void reset() throws HardwareException {
 
-		if (connector != null) {
-			try {
-				connector.close();
+		cancelStartup();
 
-			} catch (IOException e) {
-			}
+		// A replay goes on after the reset, it's not started again
+		closeConnector();
+
+		if (recorderConfiguration.recorderChanged(snapshot)) {
+			openRecorder(snapshot);
 		}
 
+		FutureTask<Boolean> task = newStartupTask(false);
+		ready = task;
+		task.run();
+
 		try {
-			initReader();
+			awaitReady(0);
 
 		} catch (HardwareException e) {
 			log.error("reset: Error performing a reset to the reader", e);
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.hal.Observation;
+
+/**
+ * Publishes the inventory of every identify into a memory mapped file, so
+ * other processes of the same host can read it with
+ * {@link InventorySnapshotReader} instead of opening their own session with
+ * the reader.
+ *
+ * The snapshot is versioned with a sequence lock: the sequence is odd while
+ * the snapshot is written and even once it's complete. A reader that sees the
+ * same even sequence before and after reading the snapshot has a consistent
+ * copy, otherwise it reads again. The mapped buffers of this Java version
+ * don't have memory fences, so the payload carries a CRC too.
+ *
+ * The readers keep their mapping of the file, so a file of another size is
+ * never resized in place: a new file is renamed into place and the old one is
+ * retired with a size of 0, which tells its readers to open it again.
+ *
+ * File layout, big endian:
+ *
+ * <pre>
+ * 0  int  MAGIC
+ * 4  int  VERSION
+ * 8  int  size of the file, 0 once it's replaced by another file
+ * 12 int  reserved
+ * 16 long sequence
+ * 24 int  payload length
+ * 28 int  payload CRC32
+ * 32      payload: long timestamp, string HAL name, int observations and
+ *         per observation: string read point, long timestamp, int ids and
+ *         the ids as strings. Strings are an unsigned short length and UTF-8
+ * </pre>
+ */
+public class InventorySnapshotPublisher {
+
+	static Logger log = Logger.getLogger(InventorySnapshotPublisher.class);
+
+	static final int MAGIC = 0x42524953;
+
+	static final int VERSION = 1;
+
+	static final int SIZE_OFFSET = 8;
+	static final int SEQUENCE_OFFSET = 16;
+	static final int LENGTH_OFFSET = 24;
+	static final int CRC_OFFSET = 28;
+	static final int HEADER_SIZE = 32;
+
+	/** Size of a file replaced by another one */
+	static final int RETIRED = 0;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer mapped;
+
+	/** The payload is encoded here before it's copied to the mapped file */
+	private final ByteBuffer payload;
+
+	private final CRC32 crc = new CRC32();
+
+	private long sequence;
+
+	/**
+	 *
+	 * @param file
+	 *            snapshot file, created if it doesn't exist
+	 * @param size
+	 *            size of the file, the largest inventory that can be
+	 *            published
+	 * @throws IOException
+	 */
+	public InventorySnapshotPublisher(File file, int size) throws IOException {
+
+		if (size <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Snapshot size too small: " + size);
+		}
+
+		this.file = file;
+
+		RandomAccessFile opened = null;
+
+		if (file.length() > 0 && file.length() != size) {
+			opened = openResized(file, size);
+		}
+
+		if (opened == null) {
+			opened = new RandomAccessFile(file, "rw");
+
+			// Never shrinks under the readers
+			if (opened.length() < size) {
+				opened.setLength(size);
+			}
+			size = (int) opened.length();
+		}
+
+		raf = opened;
+
+		mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		payload = ByteBuffer.allocate(size - HEADER_SIZE);
+
+		// Keeps the sequence growing if the file is reused, readers could be
+		// holding a sequence of the previous run
+		sequence = mapped.getInt(0) == MAGIC ? mapped.getLong(SEQUENCE_OFFSET) : 0;
+		sequence += sequence & 1;
+
+		mapped.putLong(SEQUENCE_OFFSET, sequence);
+		mapped.putInt(SIZE_OFFSET, size);
+		mapped.putInt(4, VERSION);
+		mapped.putInt(0, MAGIC);
+
+		log.info("InventorySnapshotPublisher: publishing to " + file + " (" + size + " bytes)");
+	}
+
+	/**
+	 * Replaces a snapshot file of another size with a new file, the sequence
+	 * goes on in the new file and the old one is retired once it's replaced
+	 *
+	 * @param file
+	 * @param size
+	 * @return the new file, null if the file can't be replaced
+	 * @throws IOException
+	 */
+	private static RandomAccessFile openResized(File file, int size) throws IOException {
+
+		RandomAccessFile old = new RandomAccessFile(file, "rw");
+
+		try {
+			MappedByteBuffer oldHeader = null;
+
+			if (old.length() >= HEADER_SIZE) {
+				oldHeader = old.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+				if (oldHeader.getInt(0) != MAGIC) {
+					oldHeader = null;
+				}
+			}
+
+			File resized = new File(file.getPath() + ".resized");
+			RandomAccessFile raf = new RandomAccessFile(resized, "rw");
+
+			raf.setLength(size);
+
+			if (oldHeader != null) {
+				MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+				header.putLong(SEQUENCE_OFFSET, oldHeader.getLong(SEQUENCE_OFFSET));
+				header.putInt(0, MAGIC);
+			}
+
+			// Some platforms don't rename over an existing or mapped file
+			if (!resized.renameTo(file) && !(file.delete() && resized.renameTo(file))) {
+				raf.close();
+				resized.delete();
+
+				log.warn("InventorySnapshotPublisher: " + file + " can't be replaced, it keeps "
+						+ Math.max(size, file.length()) + " bytes");
+				return null;
+			}
+
+			if (oldHeader != null) {
+				oldHeader.putInt(SIZE_OFFSET, RETIRED);
+			}
+
+			return raf;
+
+		} finally {
+			old.close();
+		}
+	}
+
+	/**
+	 * Publishes the observations of an identify, replacing the previous
+	 * snapshot
+	 *
+	 * @param halName
+	 * @param observations
+	 * @return false if the inventory doesn't fit in the file
+	 */
+	public synchronized boolean publish(String halName, Observation[] observations) {
+
+		payload.clear();
+
+		try {
+			payload.putLong(System.currentTimeMillis());
+			putString(halName);
+			payload.putInt(observations.length);
+
+			for (Observation observation : observations) {
+				String[] ids = observation.getIds();
+
+				putString(observation.getReadPointName());
+				payload.putLong(observation.getTimestamp());
+				payload.putInt(ids == null ? 0 : ids.length);
+
+				if (ids != null) {
+					for (String id : ids) {
+						putString(id);
+					}
+				}
+			}
+
+		} catch (BufferOverflowException e) {
+			log.warn("publish: Inventory doesn't fit in " + file + ", snapshot not updated");
+			return false;
+		}
+
+		payload.flip();
+
+		crc.reset();
+		crc.update(payload.array(), 0, payload.limit());
+
+		// Odd while the snapshot is written
+		mapped.putLong(SEQUENCE_OFFSET, ++sequence);
+
+		mapped.putInt(LENGTH_OFFSET, payload.limit());
+		mapped.putInt(CRC_OFFSET, (int) crc.getValue());
+		mapped.position(HEADER_SIZE);
+		mapped.put(payload);
+
+		mapped.putLong(SEQUENCE_OFFSET, ++sequence);
+
+		return true;
+	}
+
+	private void putString(String value) {
+
+		byte[] bytes;
+
+		try {
+			bytes = (value == null ? "" : value).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		payload.putShort((short) bytes.length);
+		payload.put(bytes);
+	}
+
+	/**
+	 * Closes the snapshot file, the last snapshot stays readable
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		mapped.force();
+		raf.close();
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.fosstrak.hal.Observation;
+
+/**
+ * Reads the inventory snapshot published by an
+ * {@link InventorySnapshotPublisher} of another process, without locking the
+ * publisher
+ */
+public class InventorySnapshotReader {
+
+	/** Attempts to get a consistent snapshot before giving up */
+	private static final int MAX_ATTEMPTS = 100;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer mapped;
+
+	private final byte[] payload;
+
+	private final CRC32 crc = new CRC32();
+
+	private long sequence = -1;
+
+	private long timestamp;
+
+	private String halName;
+
+	/**
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @throws IOException
+	 *             if it's not a snapshot file
+	 */
+	public InventorySnapshotReader(File file) throws IOException {
+
+		this.file = file;
+
+		raf = new RandomAccessFile(file, "r");
+
+		try {
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			if (raf.length() < InventorySnapshotPublisher.HEADER_SIZE
+					|| mapped.getInt(0) != InventorySnapshotPublisher.MAGIC) {
+				throw new IOException(file + " is not an inventory snapshot");
+			}
+
+			if (mapped.getInt(4) != InventorySnapshotPublisher.VERSION) {
+				throw new IOException("Unsupported inventory snapshot version: " + mapped.getInt(4));
+			}
+
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+		payload = new byte[mapped.capacity() - InventorySnapshotPublisher.HEADER_SIZE];
+	}
+
+	/**
+	 * Sequence of the snapshot being published now, it changes with every
+	 * identify. Cheap enough to poll for new inventories.
+	 *
+	 * @return
+	 */
+	public long getPublishedSequence() {
+		return mapped.getLong(InventorySnapshotPublisher.SEQUENCE_OFFSET);
+	}
+
+	/**
+	 * Returns the last published inventory, one observation per read point
+	 *
+	 * @return the observations, null if nothing has been published yet
+	 * @throws IOException
+	 *             if a consistent snapshot can't be read, or if the file
+	 *             was resized and it must be opened again
+	 */
+	public Observation[] read() throws IOException {
+
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+
+			if (needsReopen()) {
+				throw new IOException("Snapshot " + file + " was resized, it must be opened again");
+			}
+
+			long before = getPublishedSequence();
+
+			if (before == 0) {
+				return null;
+			}
+
+			if ((before & 1) == 0) {
+
+				int length = mapped.getInt(InventorySnapshotPublisher.LENGTH_OFFSET);
+				int checksum = mapped.getInt(InventorySnapshotPublisher.CRC_OFFSET);
+
+				if (length >= 0 && length <= payload.length) {
+					ByteBuffer view = mapped.duplicate();
+					view.position(InventorySnapshotPublisher.HEADER_SIZE);
+					view.get(payload, 0, length);
+
+					crc.reset();
+					crc.update(payload, 0, length);
+
+					if (getPublishedSequence() == before && (int) crc.getValue() == checksum) {
+						sequence = before;
+						return decode(ByteBuffer.wrap(payload, 0, length));
+					}
+				}
+			}
+
+			Thread.yield();
+		}
+
+		throw new IOException("Snapshot " + file + " kept changing while it was read");
+	}
+
+	/**
+	 * Returns true if the publisher resized or replaced the file after this
+	 * reader mapped it, this reader must be closed and a new one opened
+	 *
+	 * @return
+	 */
+	public boolean needsReopen() {
+		return mapped.getInt(InventorySnapshotPublisher.SIZE_OFFSET) != mapped.capacity();
+	}
+
+	private Observation[] decode(ByteBuffer in) {
+
+		timestamp = in.getLong();
+		halName = getString(in);
+
+		Observation[] observations = new Observation[in.getInt()];
+
+		for (int i = 0; i < observations.length; i++) {
+			Observation observation = new Observation();
+
+			observation.setHalName(halName);
+			observation.setReadPointName(getString(in));
+			observation.setTimestamp(in.getLong());
+
+			String[] ids = new String[in.getInt()];
+
+			for (int j = 0; j < ids.length; j++) {
+				ids[j] = getString(in);
+			}
+
+			observation.setIds(ids);
+			observations[i] = observation;
+		}
+
+		return observations;
+	}
+
+	private static String getString(ByteBuffer in) {
+
+		int length = in.getShort() & 0xFFFF;
+		String value;
+
+		try {
+			value = new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		in.position(in.position() + length);
+
+		return value;
+	}
+
+	/**
+	 * Sequence of the last snapshot returned by {@link #read()}
+	 *
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Time the last snapshot read was published
+	 *
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * HAL name of the publisher of the last snapshot read
+	 *
+	 * @return
+	 */
+	public String getHalName() {
+		return halName;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+}
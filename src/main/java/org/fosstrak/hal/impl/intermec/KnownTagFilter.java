@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compact membership filter of the commissioned tag ids, a Bloom filter kept
+ * off the heap in a direct buffer. Checking a tag costs a few memory probes
+ * and no allocation, a few million ids take some megabytes.
+ *
+ * A Bloom filter never rejects a known tag, but it can accept an unknown one
+ * with the configured false positive rate. Ids can be added at runtime, they
+ * can't be removed: a new filter has to be loaded instead.
+ *
+ * The ids are hex strings, compared case insensitive.
+ */
+public class KnownTagFilter {
+
+	static Logger log = Logger.getLogger(KnownTagFilter.class);
+
+	private static final double LN2 = Math.log(2);
+
+	/** Number of bits of the filter */
+	private final long bits;
+
+	/** Number of probes per id */
+	private final int probes;
+
+	private final LongBuffer words;
+
+	private long count = 0;
+
+	/**
+	 *
+	 * @param expectedEntries
+	 *            number of ids the filter is sized for
+	 * @param falsePositiveRate
+	 *            probability of accepting an unknown id once the filter
+	 *            holds the expected entries
+	 */
+	public KnownTagFilter(long expectedEntries, double falsePositiveRate) {
+
+		expectedEntries = Math.max(1, expectedEntries);
+
+		long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (LN2 * LN2));
+		long wordCount = Math.max(1, (m + 63) / 64);
+
+		if (wordCount * 8 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Filter too large for " + expectedEntries + " entries");
+		}
+
+		bits = wordCount * 64;
+		probes = Math.max(1, (int) Math.round((double) bits / expectedEntries * LN2));
+
+		words = ByteBuffer.allocateDirect((int) (wordCount * 8)).order(ByteOrder.nativeOrder()).asLongBuffer();
+
+		log.info("KnownTagFilter: " + (wordCount * 8 / 1024) + " KB, " + probes + " probes for " + expectedEntries
+				+ " entries");
+	}
+
+	/**
+	 * Creates a filter with the ids of a file, one id per line. Empty lines
+	 * and lines starting with '#' are skipped.
+	 *
+	 * @param file
+	 * @param expectedEntries
+	 * @param falsePositiveRate
+	 * @return
+	 * @throws IOException
+	 */
+	public static KnownTagFilter load(File file, long expectedEntries, double falsePositiveRate)
+			throws IOException {
+
+		KnownTagFilter filter = new KnownTagFilter(expectedEntries, falsePositiveRate);
+
+		FileReader reader = new FileReader(file);
+
+		try {
+			filter.addAll(reader);
+		} finally {
+			reader.close();
+		}
+
+		log.info("KnownTagFilter: " + filter.size() + " ids loaded from " + file);
+
+		if (filter.size() > expectedEntries) {
+			log.warn("KnownTagFilter: " + file + " has more ids than expected (" + expectedEntries
+					+ "), the false positive rate is higher than configured");
+		}
+
+		return filter;
+	}
+
+	/**
+	 * Adds all the ids read, one id per line. Empty lines and lines starting
+	 * with '#' are skipped.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void addAll(Reader in) throws IOException {
+
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+
+			if (line.length() > 0 && line.charAt(0) != '#') {
+				add(line);
+			}
+		}
+	}
+
+	/**
+	 * Adds an id
+	 *
+	 * @param id
+	 */
+	public synchronized void add(String id) {
+
+		long hash = hash(id);
+		long h2 = mix(hash) | 1;
+
+		for (int i = 0; i < probes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % bits;
+			int word = (int) (bit >>> 6);
+
+			words.put(word, words.get(word) | (1L << bit));
+		}
+
+		count++;
+	}
+
+	/**
+	 * Returns false if the id is surely not in the filter, true if it's in
+	 * the filter or it's a false positive
+	 *
+	 * @param id
+	 * @return
+	 */
+	public boolean mightContain(String id) {
+
+		long hash = hash(id);
+		long h2 = mix(hash) | 1;
+
+		for (int i = 0; i < probes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % bits;
+
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Number of ids added
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * FNV-1a of the id, case insensitive, mixed to spread the bits
+	 */
+	private static long hash(String id) {
+
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+
+			if (c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			}
+
+			hash ^= c;
+			hash *= 0x100000001b3L;
+		}
+
+		return mix(hash);
+	}
+
+	/**
+	 * Final mix of MurmurHash3
+	 */
+	private static long mix(long h) {
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+}
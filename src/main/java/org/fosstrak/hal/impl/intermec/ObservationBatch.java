@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import org.fosstrak.hal.TagDescriptor;
+
+/**
+ * A micro-batch of tag observations stored in columns, one entry per tag.
+ * Batches are recycled by the {@link ObservationBatcher}, a consumer must not
+ * keep a reference to a batch once its listener returns.
+ */
+public class ObservationBatch {
+
+	private int size = 0;
+
+	private String[] halNames;
+	private String[] readPointNames;
+	private String[] ids;
+	private TagDescriptor[] tagDescriptors;
+	private long[] timestamps;
+
+	/**
+	 *
+	 * @param capacity
+	 *            initial number of entries, the batch grows if needed
+	 */
+	public ObservationBatch(int capacity) {
+
+		capacity = Math.max(1, capacity);
+
+		halNames = new String[capacity];
+		readPointNames = new String[capacity];
+		ids = new String[capacity];
+		tagDescriptors = new TagDescriptor[capacity];
+		timestamps = new long[capacity];
+	}
+
+	/**
+	 * Appends one tag observation
+	 *
+	 * @param halName
+	 * @param readPointName
+	 * @param id
+	 * @param tagDescriptor
+	 *            can be null
+	 * @param timestamp
+	 */
+	public void add(String halName, String readPointName, String id, TagDescriptor tagDescriptor, long timestamp) {
+
+		if (size == ids.length) {
+			grow();
+		}
+
+		halNames[size] = halName;
+		readPointNames[size] = readPointName;
+		ids[size] = id;
+		tagDescriptors[size] = tagDescriptor;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	private void grow() {
+
+		int capacity = ids.length * 2;
+
+		String[] newHalNames = new String[capacity];
+		System.arraycopy(halNames, 0, newHalNames, 0, size);
+		halNames = newHalNames;
+
+		String[] newReadPointNames = new String[capacity];
+		System.arraycopy(readPointNames, 0, newReadPointNames, 0, size);
+		readPointNames = newReadPointNames;
+
+		String[] newIds = new String[capacity];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		ids = newIds;
+
+		TagDescriptor[] newTagDescriptors = new TagDescriptor[capacity];
+		System.arraycopy(tagDescriptors, 0, newTagDescriptors, 0, size);
+		tagDescriptors = newTagDescriptors;
+
+		long[] newTimestamps = new long[capacity];
+		System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+		timestamps = newTimestamps;
+	}
+
+	/**
+	 * Empties the batch keeping its storage
+	 */
+	public void clear() {
+
+		// Releasing the references so the tags can be collected
+		for (int i = 0; i < size; i++) {
+			halNames[i] = null;
+			readPointNames[i] = null;
+			ids[i] = null;
+			tagDescriptors[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Number of tag observations in the batch
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public String getHalName(int i) {
+		return halNames[i];
+	}
+
+	public String getReadPointName(int i) {
+		return readPointNames[i];
+	}
+
+	public String getId(int i) {
+		return ids[i];
+	}
+
+	public TagDescriptor getTagDescriptor(int i) {
+		return tagDescriptors[i];
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * Direct access to the id column, only the first {@link #size()} entries
+	 * are valid
+	 *
+	 * @return
+	 */
+	public String[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * Direct access to the timestamp column, only the first {@link #size()}
+	 * entries are valid
+	 *
+	 * @return
+	 */
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+/**
+ * Receives the micro-batches of an {@link ObservationBatcher}
+ */
+public interface ObservationBatchListener {
+
+	/**
+	 * Called with every flushed batch, the batch is reused after this method
+	 * returns
+	 *
+	 * @param batch
+	 */
+	void batchReady(ObservationBatch batch);
+}
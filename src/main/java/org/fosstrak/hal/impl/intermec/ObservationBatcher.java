@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.hal.AsynchronousIdentifyListener;
+import org.fosstrak.hal.Observation;
+import org.fosstrak.hal.TagDescriptor;
+
+/**
+ * Collects the tags of the observations of one or more controllers into
+ * micro-batches, delivered to a listener when they reach a given size or
+ * when their oldest tag reaches a given age. It can be registered as an
+ * asynchronous identify listener or fed with the result of identify().
+ *
+ * The batches are recycled, so in steady state no storage is allocated.
+ */
+public class ObservationBatcher implements AsynchronousIdentifyListener {
+
+	static Logger log = Logger.getLogger(ObservationBatcher.class);
+
+	/**
+	 * Flushes the batches of all the batchers that reach their maximum delay
+	 */
+	private static final ScheduledExecutorService flushTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ObservationBatcher-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final int maxSize;
+
+	private final long maxDelay;
+
+	private final ObservationBatchListener listener;
+
+	/** The batch being filled */
+	private ObservationBatch current;
+
+	/** Flush of the current batch by age, null if not scheduled */
+	private ScheduledFuture<?> scheduledFlush;
+
+	/** Batches already delivered, ready to be reused */
+	private final Queue<ObservationBatch> pool = new ConcurrentLinkedQueue<ObservationBatch>();
+
+	/** Serializes the deliveries so the listener gets the batches in order */
+	private final Object deliveryLock = new Object();
+
+	private volatile boolean closed = false;
+
+	private final Runnable flushTask = new Runnable() {
+
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 *
+	 * @param maxSize
+	 *            number of tags that triggers a flush
+	 * @param maxDelay
+	 *            maximum time in miliseconds a tag waits in a batch, 0 to
+	 *            flush only by size
+	 * @param listener
+	 */
+	public ObservationBatcher(int maxSize, long maxDelay, ObservationBatchListener listener) {
+
+		this.maxSize = Math.max(1, maxSize);
+		this.maxDelay = maxDelay;
+		this.listener = listener;
+
+		current = new ObservationBatch(this.maxSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.fosstrak.hal.AsynchronousIdentifyListener#asynchronousIdentifyPerformed
+	 * (org.fosstrak.hal.Observation)
+	 */
+	public void asynchronousIdentifyPerformed(Observation observation) {
+		add(observation);
+	}
+
+	/**
+	 * Adds the tags of all the observations
+	 *
+	 * @param observations
+	 */
+	public void addAll(Observation[] observations) {
+
+		for (Observation observation : observations) {
+			add(observation);
+		}
+	}
+
+	/**
+	 * Adds the tags of the observation
+	 *
+	 * @param observation
+	 */
+	public void add(Observation observation) {
+
+		String[] ids = observation.getIds();
+
+		if (ids == null || ids.length == 0) {
+			return;
+		}
+
+		TagDescriptor[] tds = observation.getTagDescriptors();
+		String halName = observation.getHalName();
+		String readPointName = observation.getReadPointName();
+		long timestamp = observation.getTimestamp();
+
+		boolean full;
+
+		synchronized (this) {
+			for (int i = 0; i < ids.length; i++) {
+				current.add(halName, readPointName, ids[i], tds == null ? null : tds[i], timestamp);
+			}
+
+			full = current.size() >= maxSize;
+
+			if (!full && maxDelay > 0 && scheduledFlush == null && !closed) {
+				scheduledFlush = flushTimer.schedule(flushTask, maxDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Delivers the current batch, if not empty
+	 */
+	public void flush() {
+
+		synchronized (deliveryLock) {
+
+			ObservationBatch batch;
+
+			synchronized (this) {
+				if (scheduledFlush != null) {
+					scheduledFlush.cancel(false);
+					scheduledFlush = null;
+				}
+
+				if (current.isEmpty()) {
+					return;
+				}
+
+				batch = current;
+
+				current = pool.poll();
+				if (current == null) {
+					current = new ObservationBatch(maxSize);
+				}
+			}
+
+			try {
+				listener.batchReady(batch);
+
+			} catch (RuntimeException e) {
+				log.error("flush: Error delivering batch of " + batch.size() + " tags", e);
+			}
+
+			batch.clear();
+			pool.add(batch);
+		}
+	}
+
+	/**
+	 * Delivers the pending tags and stops flushing by age
+	 */
+	public void close() {
+		closed = true;
+		flush();
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package org.fosstrak.hal.impl.intermec;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.fosstrak.hal.transponder.InventoryItem;
+
+/**
+ * Policies to assign a tag seen by several logical sources in the same
+ * identify cycle to only one of them
+ */
+enum ReadPointVoting {
+
+	/**
+	 * The tag is reported by every logical source that saw it
+	 */
+	NONE,
+
+	/**
+	 * The source with more reads of the tag wins, ties go to the strongest
+	 * signal
+	 */
+	READS,
+
+	/**
+	 * The source with the strongest signal wins, ties go to the most reads
+	 */
+	RSSI;
+
+	/**
+	 * Returns the policy with the given name, NONE if unknown
+	 * 
+	 * @param name
+	 * @return
+	 */
+	static ReadPointVoting getPolicy(String name) {
+
+		for (ReadPointVoting policy : values()) {
+			if (policy.name().equalsIgnoreCase(name)) {
+				return policy;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Removes every tag from all the inventories except the one of the
+	 * source that wins the vote, the first source wins the ties
+	 * 
+	 * @param inventories
+	 *            one inventory per logical source of the cycle
+	 */
+	void vote(List<List<InventoryItem>> inventories) {
+
+		if (this == NONE || inventories.size() < 2) {
+			return;
+		}
+
+		Map<String, BRIInventoryItem> winners = new HashMap<String, BRIInventoryItem>();
+
+		for (List<InventoryItem> inventory : inventories) {
+			for (InventoryItem item : inventory) {
+
+				BRIInventoryItem candidate = (BRIInventoryItem) item;
+				BRIInventoryItem best = winners.get(item.id);
+
+				if (best == null || beats(candidate, best)) {
+					winners.put(item.id, candidate);
+				}
+			}
+		}
+
+		for (List<InventoryItem> inventory : inventories) {
+			Iterator<InventoryItem> it = inventory.iterator();
+
+			while (it.hasNext()) {
+				InventoryItem item = it.next();
+
+				if (winners.get(item.id) != item) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private boolean beats(BRIInventoryItem a, BRIInventoryItem b) {
+
+		if (this == READS) {
+			return a.readCount > b.readCount || (a.readCount == b.readCount && a.rssi > b.rssi);
+		}
+		return a.rssi > b.rssi || (a.rssi == b.rssi && a.readCount > b.readCount);
+	}
+}
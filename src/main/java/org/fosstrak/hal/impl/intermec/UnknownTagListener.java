@@ -0,0 +1,20 @@
+/**
+ *
+ */
+package org.fosstrak.hal.impl.intermec;
+
+/**
+ * Receives the tags rejected by the {@link KnownTagFilter} of a controller,
+ * when the controller is configured to report them
+ */
+public interface UnknownTagListener {
+
+	/**
+	 * Called with the unknown tags of every read
+	 *
+	 * @param halName
+	 * @param readPointName
+	 * @param ids
+	 */
+	void unknownTagsRead(String halName, String readPointName, String[] ids);
+}
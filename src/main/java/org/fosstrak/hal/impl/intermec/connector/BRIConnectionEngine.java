@@ -0,0 +1,255 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Multiplexes many BRI connections over a fixed number of selector threads.
+ * Each thread owns a selector and a timer wheel for the request timeouts, so
+ * an idle reader doesn't hold any thread and a single JVM can drive a large
+ * fleet of readers.
+ */
+public class BRIConnectionEngine {
+
+	static Logger log = Logger.getLogger(BRIConnectionEngine.class);
+
+	/**
+	 * System property with the number of selector threads of the default
+	 * engine
+	 */
+	public static final String SELECTOR_THREADS_PROPERTY = "org.fosstrak.hal.intermec.selectorThreads";
+
+	/** Resolution of the request timeouts */
+	private static final long TICK_MILLIS = 10;
+
+	/** Slots of the timer wheels, a full turn is about 5 seconds */
+	private static final int WHEEL_SLOTS = 512;
+
+	private static BRIConnectionEngine defaultEngine;
+
+	private final SelectorLoop[] loops;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Returns the engine shared by all the controllers of the JVM
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized BRIConnectionEngine getDefault() throws IOException {
+
+		if (defaultEngine == null) {
+			defaultEngine = new BRIConnectionEngine(Integer.getInteger(SELECTOR_THREADS_PROPERTY, 2).intValue());
+		}
+		return defaultEngine;
+	}
+
+	/**
+	 *
+	 * @param threads
+	 *            number of selector threads
+	 * @throws IOException
+	 */
+	public BRIConnectionEngine(int threads) throws IOException {
+
+		loops = new SelectorLoop[Math.max(1, threads)];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(i);
+
+			Thread thread = new Thread(loops[i], "BRIConnectionEngine-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		log.info("BRIConnectionEngine started with " + loops.length + " selector threads");
+	}
+
+	/**
+	 * Opens a new connection handled by this engine. The TCP connection is
+	 * established in the calling thread, then the connection is handed to one
+	 * of the selector threads.
+	 *
+	 * @param host
+	 * @param port
+	 * @param timeout
+	 *            maximum time for every request, including its time in queue
+	 * @param bannerTimeout
+	 *            maximum wait for the initial information sent by the BRI
+	 * @param recorder
+	 *            records all the traffic of the connection, can be null
+	 * @return
+	 * @throws IOException
+	 */
+	public BRISelectorConnector connect(String host, int port, int timeout, int bannerTimeout,
+			BRITrafficRecorder recorder) throws IOException {
+		return connect(host, port, timeout, bannerTimeout, recorder, new BRIFlightRecorder());
+	}
+
+	/**
+	 * Opens a new connection handled by this engine, recording its last
+	 * events into the given ring
+	 *
+	 * @param host
+	 * @param port
+	 * @param timeout
+	 * @param bannerTimeout
+	 * @param recorder
+	 *            records all the traffic of the connection, can be null
+	 * @param flightRecorder
+	 *            ring of the last events, it can outlive the connection
+	 * @return
+	 * @throws IOException
+	 */
+	public BRISelectorConnector connect(String host, int port, int timeout, int bannerTimeout,
+			BRITrafficRecorder recorder, BRIFlightRecorder flightRecorder) throws IOException {
+
+		SocketChannel channel = SocketChannel.open();
+
+		try {
+			channel.socket().connect(new InetSocketAddress(host, port), timeout);
+			channel.configureBlocking(false);
+
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		log.info("BRIConnectionEngine: " + host + ":" + port + " ,connection established");
+
+		SelectorLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+		final BRISelectorConnector connector = new BRISelectorConnector(loop, channel, timeout, bannerTimeout,
+				recorder, flightRecorder);
+
+		loop.execute(new Runnable() {
+
+			public void run() {
+				connector.register();
+			}
+		});
+
+		return connector;
+	}
+
+	/**
+	 * Stops the selector threads, the open connections are closed
+	 */
+	public void shutdown() {
+
+		for (SelectorLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * A selector thread and the connections it owns. All the connection state
+	 * is only touched from this thread, other threads hand work to it with
+	 * {@link #execute(Runnable)}.
+	 */
+	final class SelectorLoop implements Runnable {
+
+		private final int id;
+
+		private final Selector selector;
+
+		private final BRITimerWheel wheel = new BRITimerWheel(WHEEL_SLOTS, TICK_MILLIS);
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private volatile boolean running = true;
+
+		private SelectorLoop(int id) throws IOException {
+			this.id = id;
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs a task in the selector thread
+		 *
+		 * @param task
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		BRITimerWheel getWheel() {
+			return wheel;
+		}
+
+		SelectionKey register(SocketChannel channel, BRISelectorConnector connector) throws ClosedChannelException {
+			return channel.register(selector, SelectionKey.OP_READ, connector);
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+
+			while (running) {
+				try {
+					// Blocks until some I/O, a task or the next timeout, an idle
+					// loop doesn't wake up at all
+					selector.select(wheel.millisToNextTimeout());
+
+					wheel.advance();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						BRISelectorConnector connector = (BRISelectorConnector) key.attachment();
+
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connector.handleRead();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connector.handleWrite();
+							}
+
+						} catch (IOException e) {
+							log.error("Connection " + connector + " failed", e);
+							connector.fail(e);
+						}
+					}
+
+				} catch (Exception e) {
+					// The loop serves many connections, it must survive any of them
+					log.error("BRIConnectionEngine-" + id + ": unexpected error", e);
+				}
+			}
+
+			for (SelectionKey key : selector.keys()) {
+				((BRISelectorConnector) key.attachment()).fail(new IOException("Connection engine stopped"));
+			}
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("Error closing selector", e);
+			}
+		}
+	}
+}
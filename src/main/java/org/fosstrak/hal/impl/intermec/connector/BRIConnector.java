@@ -0,0 +1,183 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for the connectors that talk Intermec's BRI protocol. Subclasses
+ * only have to deliver the raw response of a command, the parsing of the
+ * responses is shared
+ */
+public abstract class BRIConnector {
+
+	/**
+	 * Last events of this connector, for diagnostics
+	 */
+	protected final BRIFlightRecorder flightRecorder;
+
+	/** Prefix of the event messages the BRI sends on its own */
+	protected static final String EVENT_PREFIX = "EVT:";
+
+	/** Events kept until they are polled, the oldest are dropped */
+	private static final int EVENT_CAPACITY = 64;
+
+	private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>(EVENT_CAPACITY);
+
+	/**
+	 * Command unknown to the BRI, always answered with an error. It's sent
+	 * when the initial information doesn't arrive in time: everything received
+	 * up to its error response is initial information arriving late.
+	 */
+	protected static final String RESYNC_COMMAND = "RESYNC";
+
+	/**
+	 * Creates a connector with its own flight recorder
+	 */
+	protected BRIConnector() {
+		this(new BRIFlightRecorder());
+	}
+
+	/**
+	 *
+	 * @param flightRecorder
+	 *            ring the events of this connector are recorded into, shared
+	 *            with the previous connectors of the same reader
+	 */
+	protected BRIConnector(BRIFlightRecorder flightRecorder) {
+		this.flightRecorder = flightRecorder;
+	}
+
+	/**
+	 * Returns true if the response is the answer to {@link #RESYNC_COMMAND}
+	 *
+	 * @param response
+	 * @return
+	 */
+	protected static boolean isResyncResponse(String response) {
+		return response.startsWith("ERR");
+	}
+
+	/**
+	 * This Method Allows to send the any command to the BRI client, works
+	 * synchronized and returns the response inmediately.
+	 *
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public abstract String sendRequest(String data) throws IOException;
+
+	/**
+	 * Close the connection, after calling this method a new connector should
+	 * be created
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Returns the status of the connection
+	 *
+	 * @return
+	 */
+	public abstract boolean isConnected();
+
+	/**
+	 * Called by the subclasses with every event message received, events are
+	 * never part of a response
+	 *
+	 * @param event
+	 */
+	protected void onEvent(String event) {
+
+		flightRecorder.record(BRIFlightRecorder.EVENT, 0, event);
+
+		while (!events.offer(event)) {
+			events.poll();
+		}
+	}
+
+	/**
+	 * Returns the next event message sent by the BRI, like the firing of a
+	 * trigger
+	 *
+	 * @param millis
+	 *            maximum wait, 0 to not wait
+	 * @return the event, null if there is none
+	 * @throws IOException
+	 */
+	public String pollEvent(long millis) throws IOException {
+
+		try {
+			return events.poll(millis, TimeUnit.MILLISECONDS);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the next event already received, without waiting
+	 *
+	 * @return
+	 */
+	protected String nextEvent() {
+		return events.poll();
+	}
+
+	/**
+	 * Returns the RFID tags list or null
+	 *
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized String[] sendReadRequest(String data) throws IOException {
+
+		String response = sendRequest(data);
+
+		// If not, then there are no tags in the message
+		if (!response.startsWith("H")) {
+			flightRecorder.record(BRIFlightRecorder.PARSE, 0, null);
+			return null;
+		}
+
+		// The "H" just indicate that the id is an HEX string then is not needed
+		response = response.replaceAll("H", "");
+
+		String[] list = response.split("\n");
+
+		flightRecorder.record(BRIFlightRecorder.PARSE, list.length, null);
+
+		return list;
+	}
+
+	/**
+	 * Sends a read command that requests per tag fields and returns its rows
+	 * 
+	 * @param data
+	 * @param fields
+	 *            fields requested after the tag id, in order
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized BRIReadResult sendReadRequest(String data, String[] fields) throws IOException {
+
+		String response = sendRequest(data);
+
+		BRIReadResult result = BRIReadResult.parse(response, fields, System.currentTimeMillis());
+
+		flightRecorder.record(BRIFlightRecorder.PARSE, result.size(), null);
+
+		return result;
+	}
+
+	/**
+	 * Returns the in memory record of the last events of this connector
+	 *
+	 * @return
+	 */
+	public BRIFlightRecorder getFlightRecorder() {
+		return flightRecorder;
+	}
+}
@@ -0,0 +1,185 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on, in memory ring of the last BRI events of a connector: commands
+ * sent, responses received with their latency, timeouts and parsed reads with
+ * their tag count. A ring handed to every new connector of a controller keeps
+ * the history across reconnections. Recording an event only stores references and numbers in
+ * preallocated arrays, the text is formatted when the ring is dumped.
+ *
+ * Writers don't lock, an event being overwritten while the ring is dumped may
+ * show mixed fields. That's acceptable for a diagnostic tool.
+ */
+public class BRIFlightRecorder {
+
+	/**
+	 * System property with the number of events kept by each connector
+	 */
+	public static final String SIZE_PROPERTY = "org.fosstrak.hal.intermec.flightRecorderSize";
+
+	/** A command sent to the reader, text is the command */
+	public static final byte COMMAND = 1;
+
+	/** A response received, text is the response, value its latency in us */
+	public static final byte RESPONSE = 2;
+
+	/** A response not received in time, value is the time waited in us */
+	public static final byte TIMEOUT = 3;
+
+	/** A read response parsed, value is the number of tags */
+	public static final byte PARSE = 4;
+
+	/** An event message sent by the reader on its own, text is the event */
+	public static final byte EVENT = 5;
+
+	/** A new connection, text is the address of the reader */
+	public static final byte CONNECT = 6;
+
+	private static final String[] KIND_NAMES = { "", "COMMAND", "RESPONSE", "TIMEOUT", "PARSE", "EVENT",
+			"CONNECT" };
+
+	/** Maximum characters of text dumped per event */
+	private static final int MAX_TEXT = 256;
+
+	private final int size;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final long[] times;
+	private final byte[] kinds;
+	private final long[] values;
+	private final String[] texts;
+
+	/** Relation between nanoTime and the wall clock, for the dumps */
+	private final long baseNanos = System.nanoTime();
+	private final long baseMillis = System.currentTimeMillis();
+
+	/**
+	 * Creates a ring with the size of the {@link #SIZE_PROPERTY} system
+	 * property, 256 events by default
+	 */
+	public BRIFlightRecorder() {
+		this(Integer.getInteger(SIZE_PROPERTY, 256).intValue());
+	}
+
+	/**
+	 *
+	 * @param size
+	 *            number of events kept
+	 */
+	public BRIFlightRecorder(int size) {
+
+		this.size = Math.max(1, size);
+
+		times = new long[this.size];
+		kinds = new byte[this.size];
+		values = new long[this.size];
+		texts = new String[this.size];
+	}
+
+	/**
+	 * Records an event
+	 *
+	 * @param kind
+	 * @param value
+	 * @param text
+	 *            can be null
+	 */
+	public void record(byte kind, long value, String text) {
+
+		int slot = (int) (sequence.getAndIncrement() % size);
+
+		times[slot] = System.nanoTime();
+		kinds[slot] = kind;
+		values[slot] = value;
+		texts[slot] = text;
+	}
+
+	/**
+	 * Number of events recorded since the connector was created
+	 *
+	 * @return
+	 */
+	public long getEventCount() {
+		return sequence.get();
+	}
+
+	/**
+	 * Writes the events in the ring, oldest first
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void dump(Writer out) throws IOException {
+
+		long last = sequence.get();
+		long first = Math.max(0, last - size);
+
+		PrintWriter writer = new PrintWriter(out);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+		for (long seq = first; seq < last; seq++) {
+
+			int slot = (int) (seq % size);
+			byte kind = kinds[slot];
+			long time = times[slot];
+			long value = values[slot];
+			String text = texts[slot];
+
+			long millis = baseMillis + (time - baseNanos) / 1000000;
+
+			writer.print(seq);
+			writer.print(' ');
+			writer.print(format.format(new Date(millis)));
+			writer.print(' ');
+			writer.print(kind > 0 && kind < KIND_NAMES.length ? KIND_NAMES[kind] : "?");
+
+			if (kind == RESPONSE || kind == TIMEOUT) {
+				writer.print(' ');
+				writer.print(value);
+				writer.print("us");
+			} else if (kind == PARSE) {
+				writer.print(' ');
+				writer.print(value);
+				writer.print(" tags");
+			}
+
+			if (text != null) {
+				if (text.length() > MAX_TEXT) {
+					text = text.substring(0, MAX_TEXT) + "...";
+				}
+				writer.print(' ');
+				writer.print(text.replace("\n", "\\n"));
+			}
+			writer.println();
+		}
+
+		writer.flush();
+	}
+
+	/**
+	 * Returns the events in the ring, oldest first
+	 *
+	 * @return
+	 */
+	public String dump() {
+
+		StringWriter out = new StringWriter();
+
+		try {
+			dump(out);
+		} catch (IOException e) {
+			// not thrown by a StringWriter
+		}
+
+		return out.toString();
+	}
+}
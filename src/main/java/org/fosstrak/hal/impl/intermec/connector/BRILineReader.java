@@ -0,0 +1,97 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reads the lines sent by the BRI with an overall deadline. Unlike a
+ * BufferedReader, a timeout never loses data: the part of a line already
+ * received is kept and completed by the next read.
+ */
+final class BRILineReader {
+
+	private final Socket socket;
+
+	private final InputStream in;
+
+	private final byte[] buffer = new byte[8192];
+
+	private int position = 0;
+
+	private int limit = 0;
+
+	/** Part of the current line received so far */
+	private final StringBuilder line = new StringBuilder();
+
+	BRILineReader(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = socket.getInputStream();
+	}
+
+	/**
+	 * Returns the next line without its terminator, or null at the end of the
+	 * stream
+	 *
+	 * @param deadline
+	 *            nanoTime by which the line must be complete
+	 * @return
+	 * @throws SocketTimeoutException
+	 *             if the deadline is reached, the partial line is kept
+	 * @throws IOException
+	 */
+	String readLine(long deadline) throws IOException {
+
+		while (true) {
+
+			while (position < limit) {
+				byte b = buffer[position++];
+
+				if (b == '\n') {
+					String result = line.toString();
+					line.setLength(0);
+					return result;
+				}
+
+				if (b != '\r') {
+					line.append((char) (b & 0xFF));
+				}
+			}
+
+			long remaining = (deadline - System.nanoTime()) / 1000000;
+
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Deadline reached");
+			}
+
+			socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+
+			int n = in.read(buffer);
+
+			if (n < 0) {
+				if (line.length() == 0) {
+					return null;
+				}
+				String result = line.toString();
+				line.setLength(0);
+				return result;
+			}
+
+			position = 0;
+			limit = n;
+		}
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Drops the partial line and the data already buffered
+	 */
+	void discard() {
+		line.setLength(0);
+		position = limit;
+	}
+}
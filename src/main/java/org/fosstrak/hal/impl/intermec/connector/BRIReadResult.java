@@ -0,0 +1,212 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The rows of a read response with per tag fields, stored in columns. A tag
+ * seen by several antennas can have a row per antenna. Fields not requested
+ * or not reported hold {@link #UNKNOWN}.
+ */
+public class BRIReadResult {
+
+	/** Value of the fields not reported by the reader */
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+
+	/** Antenna that read the tag */
+	public static final String ANT = "ANT";
+
+	/** Number of times the tag was read */
+	public static final String COUNT = "COUNT";
+
+	/** Signal strength of the tag */
+	public static final String RSSI = "RSSI";
+
+	/**
+	 * Time the reader read the tag, sent as "MM/dd/yyyy HH:mm:ss.SSS" or as
+	 * milliseconds. The date carries no zone, it's parsed in the default time
+	 * zone of the JVM, which must be the one of the reader
+	 */
+	public static final String TIME = "TIME";
+
+	private int size = 0;
+
+	/** Time the response was received */
+	private final long received;
+
+	private String[] ids;
+	private int[] antennas;
+	private int[] counts;
+	private int[] rssis;
+	private long[] times;
+
+	/**
+	 * Parses a read response just received
+	 *
+	 * @param response
+	 * @param fields
+	 *            fields requested after the tag id
+	 * @return
+	 */
+	public static BRIReadResult parse(String response, String[] fields) {
+		return parse(response, fields, System.currentTimeMillis());
+	}
+
+	/**
+	 * Parses a read response. Each row is the hex id preceded by "H",
+	 * followed by the fields in the order they were requested.
+	 *
+	 * @param response
+	 * @param fields
+	 *            fields requested after the tag id
+	 * @param received
+	 *            time the response was received
+	 * @return
+	 */
+	public static BRIReadResult parse(String response, String[] fields, long received) {
+
+		String[] lines = response.split("\n");
+
+		BRIReadResult result = new BRIReadResult(lines.length, received);
+
+		int[] columns = new int[fields.length];
+		SimpleDateFormat timeFormat = null;
+
+		for (int f = 0; f < fields.length; f++) {
+			columns[f] = ANT.equalsIgnoreCase(fields[f]) ? 0 : COUNT.equalsIgnoreCase(fields[f]) ? 1 : RSSI
+					.equalsIgnoreCase(fields[f]) ? 2 : TIME.equalsIgnoreCase(fields[f]) ? 3 : -1;
+
+			if (columns[f] == 3) {
+				timeFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
+			}
+		}
+
+		for (String line : lines) {
+
+			// Only the tag rows, the ids are hex strings
+			if (!line.startsWith("H")) {
+				continue;
+			}
+
+			String[] tokens = line.trim().split("\\s+");
+
+			int row = result.size++;
+
+			result.ids[row] = tokens[0].substring(1);
+			result.antennas[row] = UNKNOWN;
+			result.counts[row] = UNKNOWN;
+			result.rssis[row] = UNKNOWN;
+			result.times[row] = UNKNOWN;
+
+			// The time takes two tokens when it's sent as date and time
+			int t = 1;
+
+			for (int f = 0; f < columns.length && t < tokens.length; f++, t++) {
+				switch (columns[f]) {
+				case 0:
+					result.antennas[row] = parseInt(tokens[t]);
+					break;
+				case 1:
+					result.counts[row] = parseInt(tokens[t]);
+					break;
+				case 2:
+					result.rssis[row] = parseInt(tokens[t]);
+					break;
+				case 3:
+					if (tokens[t].indexOf('/') > 0 && t + 1 < tokens.length) {
+						result.times[row] = parseTime(timeFormat, tokens[t] + " " + tokens[++t]);
+					} else {
+						result.times[row] = parseLong(tokens[t]);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static int parseInt(String token) {
+		try {
+			return Integer.parseInt(token);
+		} catch (NumberFormatException e) {
+			return UNKNOWN;
+		}
+	}
+
+	private static long parseLong(String token) {
+		try {
+			return Long.parseLong(token);
+		} catch (NumberFormatException e) {
+			return UNKNOWN;
+		}
+	}
+
+	private static long parseTime(SimpleDateFormat format, String token) {
+
+		Date date = format.parse(token, new ParsePosition(0));
+
+		if (date == null) {
+			// Without milliseconds
+			date = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss").parse(token, new ParsePosition(0));
+		}
+
+		return date == null ? UNKNOWN : date.getTime();
+	}
+
+	private BRIReadResult(int capacity, long received) {
+		this.received = received;
+		ids = new String[capacity];
+		antennas = new int[capacity];
+		counts = new int[capacity];
+		rssis = new int[capacity];
+		times = new long[capacity];
+	}
+
+	/**
+	 * Number of rows
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getId(int row) {
+		return ids[row];
+	}
+
+	public int getAntenna(int row) {
+		return antennas[row];
+	}
+
+	public int getCount(int row) {
+		return counts[row];
+	}
+
+	public int getRssi(int row) {
+		return rssis[row];
+	}
+
+	/**
+	 * Time the reader read the tag, in milliseconds
+	 *
+	 * @param row
+	 * @return
+	 */
+	public long getTime(int row) {
+		return times[row];
+	}
+
+	/**
+	 * Time the response was received
+	 *
+	 * @return
+	 */
+	public long getReceived() {
+		return received;
+	}
+}
@@ -0,0 +1,320 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connector that feeds back a capture written by {@link BRITrafficRecorder}
+ * instead of talking to a reader. Every command gets the response recorded for
+ * it, either with the original timing of the capture or as fast as possible.
+ * The reconnections of the capture are skipped, and a reconnection of the
+ * replayed controller goes on with the same replay. The recorded events are
+ * delivered again when the replay reaches them.
+ */
+public class BRIReplayConnector extends BRIConnector {
+
+	static Logger log = Logger.getLogger(BRIReplayConnector.class);
+
+	private final File file;
+
+	private final DataInputStream in;
+
+	/**
+	 * If true the responses are delivered with the capture timing, otherwise
+	 * as fast as they are requested
+	 */
+	private final boolean originalSpeed;
+
+	/** Capture time of the last record read, in microseconds */
+	private long captureTime = 0;
+
+	/** nanoTime at which the replay started */
+	private long replayStart;
+
+	/** Next record not consumed yet, kind 0 when there is none */
+	private byte nextKind = 0;
+	private long nextTime;
+	private String nextData;
+
+	private boolean exhausted = false;
+
+	/**
+	 *
+	 * @param file
+	 *            capture file
+	 * @param originalSpeed
+	 *            replay with the original timing of the capture
+	 * @throws IOException
+	 */
+	public BRIReplayConnector(File file, boolean originalSpeed) throws IOException {
+		this(file, originalSpeed, new BRIFlightRecorder());
+	}
+
+	/**
+	 *
+	 * @param file
+	 *            capture file
+	 * @param originalSpeed
+	 *            replay with the original timing of the capture
+	 * @param flightRecorder
+	 *            ring of the last events, it can outlive this connector
+	 * @throws IOException
+	 */
+	public BRIReplayConnector(File file, boolean originalSpeed, BRIFlightRecorder flightRecorder)
+			throws IOException {
+
+		super(flightRecorder);
+
+		this.file = file;
+		this.originalSpeed = originalSpeed;
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		if (in.readInt() != BRITrafficRecorder.MAGIC) {
+			in.close();
+			throw new IOException(file + " is not a BRI capture file");
+		}
+
+		int version = in.readInt();
+
+		if (version < BRITrafficRecorder.MIN_VERSION || version > BRITrafficRecorder.VERSION) {
+			in.close();
+			throw new IOException("Unsupported BRI capture version: " + version);
+		}
+
+		long started = in.readLong();
+
+		log.info("BRIReplayConnector: replaying " + file + " captured at " + new java.util.Date(started)
+				+ (originalSpeed ? " at original speed" : " at maximum speed"));
+
+		replayStart = System.nanoTime();
+
+		readNext();
+
+		skipConnection();
+	}
+
+	/**
+	 * Skips the connection record and the Initial Information data that could
+	 * be sent by the BRI
+	 */
+	private void skipConnection() throws IOException {
+
+		if (nextKind == BRITrafficRecorder.CONNECT) {
+			log.info("Replaying connection to " + nextData);
+			flightRecorder.record(BRIFlightRecorder.CONNECT, 0, nextData);
+			readNext();
+			replayEvents();
+		}
+
+		if (nextKind == BRITrafficRecorder.RESPONSE) {
+			readNext();
+		}
+	}
+
+	/**
+	 * Continues the replay after the controller reconnects, the capture is
+	 * not started again. If the capture reconnected at the same point its
+	 * Initial Information is consumed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void reconnect() throws IOException {
+
+		if (exhausted) {
+			throw new EOFException("End of BRI capture " + file);
+		}
+
+		skipConnection();
+	}
+
+	/**
+	 * Capture file of this replay
+	 *
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Connector's capture file representation
+	 */
+	public String toString() {
+		return "replay:" + file.getName();
+	}
+
+	/**
+	 * Returns the response recorded for the next command of the capture. The
+	 * command should match the recorded one, a mismatch means the replay is
+	 * no longer deterministic and it's logged.
+	 *
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 *             when the capture has been fully consumed
+	 */
+	public synchronized String sendRequest(String data) throws IOException {
+
+		// The capture reconnected here, or holds a response without command
+		// like the Initial Information of older captures
+		while (nextKind == BRITrafficRecorder.CONNECT || nextKind == BRITrafficRecorder.RESPONSE
+				|| nextKind == BRITrafficRecorder.EVENT) {
+			replayEvents();
+			skipConnection();
+		}
+
+		if (nextKind != BRITrafficRecorder.COMMAND) {
+			exhausted = true;
+			throw new EOFException("End of BRI capture " + file);
+		}
+
+		long start = System.nanoTime();
+		flightRecorder.record(BRIFlightRecorder.COMMAND, 0, data);
+
+		if (!nextData.equals(data)) {
+			log.warn("Replay diverged, command send: " + data + " recorded: " + nextData);
+		}
+
+		readNext();
+
+		// Events received while the response was awaited
+		replayEvents();
+
+		if (nextKind != BRITrafficRecorder.RESPONSE) {
+			exhausted = true;
+			throw new EOFException("End of BRI capture " + file);
+		}
+
+		String response = nextData;
+
+		if (originalSpeed) {
+			waitUntil(nextTime);
+		}
+
+		readNext();
+
+		flightRecorder.record(BRIFlightRecorder.RESPONSE, (System.nanoTime() - start) / 1000, response);
+
+		return response;
+	}
+
+	/**
+	 * Returns the next event of the capture. The recorded events are queued
+	 * when the replay reaches them, at their capture time at original speed
+	 * 
+	 * @param millis
+	 *            maximum wait, 0 to not wait
+	 * @return the event, null if there is none
+	 * @throws IOException
+	 */
+	public synchronized String pollEvent(long millis) throws IOException {
+
+		String event = nextEvent();
+
+		if (event != null) {
+			return event;
+		}
+
+		long deadline = System.nanoTime() + millis * 1000000L;
+
+		if (nextKind == BRITrafficRecorder.EVENT
+				&& (!originalSpeed || replayStart + nextTime * 1000 - deadline <= 0)) {
+			if (originalSpeed) {
+				waitUntil(nextTime);
+			}
+			onEvent(nextData);
+			readNext();
+
+			return nextEvent();
+		}
+
+		// Nothing is due in time, a command comes first in the capture
+		long delay = deadline - System.nanoTime();
+
+		if (delay > 0) {
+			try {
+				wait(delay / 1000000, (int) (delay % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		return nextEvent();
+	}
+
+	/**
+	 * Queues the events at the current position of the capture
+	 */
+	private void replayEvents() throws IOException {
+
+		while (nextKind == BRITrafficRecorder.EVENT) {
+			if (originalSpeed) {
+				waitUntil(nextTime);
+			}
+			onEvent(nextData);
+			readNext();
+		}
+	}
+
+	/**
+	 * Blocks until the given capture time is reached in the replay timeline
+	 */
+	private void waitUntil(long captureMicros) {
+
+		long delay = captureMicros * 1000 - (System.nanoTime() - replayStart);
+
+		if (delay <= 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readNext() throws IOException {
+
+		int kind = in.read();
+
+		if (kind < 0) {
+			nextKind = 0;
+			nextData = null;
+			return;
+		}
+
+		captureTime += BRITrafficRecorder.readVarLong(in);
+
+		byte[] bytes = new byte[(int) BRITrafficRecorder.readVarLong(in)];
+		in.readFully(bytes);
+
+		nextKind = (byte) kind;
+		nextTime = captureTime;
+		nextData = new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Close the capture file
+	 */
+	public void close() throws IOException {
+		exhausted = true;
+		in.close();
+	}
+
+	/**
+	 * The replay is connected until the capture is consumed or closed
+	 *
+	 * @return
+	 */
+	public boolean isConnected() {
+		return !exhausted;
+	}
+}
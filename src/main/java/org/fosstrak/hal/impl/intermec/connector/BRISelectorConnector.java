@@ -0,0 +1,520 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * BRI connection driven by a {@link BRIConnectionEngine}. Commands are queued
+ * per connection and sent one at a time, each one with an overall deadline
+ * that includes its time in queue. Responses of expired commands are
+ * discarded when they arrive, so the stream stays in sync. Initial
+ * information arriving after its timeout is discarded up to the response of
+ * a resync command.
+ */
+public class BRISelectorConnector extends BRIConnector {
+
+	static Logger log = Logger.getLogger(BRISelectorConnector.class);
+
+	/** End of the response to each command */
+	private static final String PROMPT = "OK>";
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+	private final BRIConnectionEngine.SelectorLoop loop;
+
+	private final SocketChannel channel;
+
+	private final String address;
+
+	private final long timeout;
+
+	private final BRITrafficRecorder recorder;
+
+	private volatile boolean closed = false;
+
+	/*
+	 * The following state is only used from the selector thread
+	 */
+
+	private SelectionKey key;
+
+	private final LinkedList<Request> queue = new LinkedList<Request>();
+
+	private Request inFlight;
+
+	/** Responses still owed by the reader for expired commands */
+	private int discardFrames = 0;
+
+	/** True until the response of the resync command is received */
+	private boolean resyncPending = false;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private ByteBuffer writeBuffer;
+
+	private final StringBuilder line = new StringBuilder();
+
+	private final StringBuilder frame = new StringBuilder();
+
+	BRISelectorConnector(BRIConnectionEngine.SelectorLoop loop, SocketChannel channel, int timeout,
+			int bannerTimeout, BRITrafficRecorder recorder, BRIFlightRecorder flightRecorder) {
+
+		super(flightRecorder);
+
+		this.loop = loop;
+		this.channel = channel;
+		this.timeout = timeout;
+		this.recorder = recorder;
+
+		address = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+
+		flightRecorder.record(BRIFlightRecorder.CONNECT, 0, address);
+
+		if (recorder != null) {
+			recorder.recordConnect(address);
+		}
+
+		// Getting the Initial Information data that could be sent by the BRI
+		queue.add(new Request(null, System.nanoTime() + bannerTimeout * 1000000L));
+	}
+
+	/**
+	 * Connector's socket string representation
+	 */
+	public String toString() {
+		return address;
+	}
+
+	/**
+	 * Queues a command without blocking the caller, the future completes
+	 * with the response or fails with a {@link SocketTimeoutException} if the
+	 * response doesn't arrive before the deadline
+	 *
+	 * @param data
+	 * @return
+	 */
+	public Future<String> submit(String data) {
+
+		final Request request = new Request(data, System.nanoTime() + timeout * 1000000L);
+
+		if (closed) {
+			request.fail(new IOException("Connection " + address + " is closed"));
+			return request;
+		}
+
+		loop.execute(new Runnable() {
+
+			public void run() {
+				if (closed) {
+					request.fail(new IOException("Connection " + address + " is closed"));
+					return;
+				}
+				queue.add(request);
+				startNext();
+			}
+		});
+
+		return request;
+	}
+
+	/**
+	 * Sends the command and waits for its response, returns an empty string
+	 * if the response doesn't arrive in time
+	 *
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public String sendRequest(String data) throws IOException {
+
+		try {
+			return submit(data).get();
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SocketTimeoutException) {
+				log.warn("Timeout of: " + timeout + " ms. in request to " + address);
+				return "";
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + address);
+		}
+	}
+
+	/**
+	 * Close the connection, the pending requests fail
+	 */
+	public void close() throws IOException {
+
+		closed = true;
+
+		loop.execute(new Runnable() {
+
+			public void run() {
+				fail(new IOException("Connection " + address + " closed"));
+			}
+		});
+	}
+
+	/**
+	 * Returns the status of the connection
+	 *
+	 * @return
+	 */
+	public boolean isConnected() {
+		return !closed && channel.isConnected();
+	}
+
+	/**
+	 * Registers the channel in the selector, called from the selector thread
+	 */
+	void register() {
+
+		try {
+			key = loop.register(channel, this);
+			startNext();
+
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Sends the next queued command if none is in flight
+	 */
+	private void startNext() {
+
+		while (inFlight == null && !queue.isEmpty() && key != null) {
+
+			Request request = queue.removeFirst();
+
+			if (request.isDone()) {
+				// cancelled by the caller
+				continue;
+			}
+
+			long remaining = (request.deadline - System.nanoTime()) / 1000000;
+
+			if (remaining <= 0) {
+				request.fail(new SocketTimeoutException("Request expired in queue"));
+				continue;
+			}
+
+			inFlight = request;
+			request.timeout = loop.getWheel().schedule(new Expiry(request), remaining);
+
+			if (request.command != null) {
+				if (recorder != null) {
+					recorder.recordCommand(request.command);
+				}
+
+				if (log.isDebugEnabled()) {
+					log.debug("Command send: " + request.command);
+				}
+
+				request.sent = System.nanoTime();
+				flightRecorder.record(BRIFlightRecorder.COMMAND, 0, request.command);
+
+				write(request.command);
+			}
+		}
+	}
+
+	/**
+	 * Writes a command after the data not written yet
+	 *
+	 * @param command
+	 */
+	private void write(String command) {
+
+		byte[] bytes = command.getBytes();
+		int pending = writeBuffer == null ? 0 : writeBuffer.remaining();
+
+		ByteBuffer buffer = ByteBuffer.allocate(pending + bytes.length + LINE_SEPARATOR.length);
+
+		if (pending > 0) {
+			buffer.put(writeBuffer);
+		}
+
+		buffer.put(bytes).put(LINE_SEPARATOR).flip();
+		writeBuffer = buffer;
+
+		try {
+			handleWrite();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	void handleWrite() throws IOException {
+
+		channel.write(writeBuffer);
+
+		if (writeBuffer.hasRemaining()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+			writeBuffer = null;
+		}
+	}
+
+	void handleRead() throws IOException {
+
+		int n = channel.read(readBuffer);
+
+		if (n < 0) {
+			throw new EOFException("Connection closed by " + address);
+		}
+
+		readBuffer.flip();
+
+		while (readBuffer.hasRemaining()) {
+			char c = (char) (readBuffer.get() & 0xFF);
+
+			if (c == '\n') {
+				onLine();
+			} else if (c != '\r') {
+				line.append(c);
+			}
+		}
+
+		readBuffer.clear();
+	}
+
+	private void onLine() {
+
+		if (line.indexOf(EVENT_PREFIX) == 0) {
+			if (recorder != null) {
+				recorder.recordEvent(line.toString());
+			}
+			onEvent(line.toString());
+			line.setLength(0);
+			return;
+		}
+
+		if (!PROMPT.contentEquals(line)) {
+			frame.append(line).append('\n');
+			line.setLength(0);
+			return;
+		}
+
+		line.setLength(0);
+
+		String response = frame.toString();
+		frame.setLength(0);
+
+		if (resyncPending) {
+			if (isResyncResponse(response)) {
+				resyncPending = false;
+			} else {
+				log.debug("Discarding late initial information from " + address);
+			}
+			return;
+		}
+
+		if (discardFrames > 0) {
+			discardFrames--;
+			log.debug("Discarding late response from " + address);
+			return;
+		}
+
+		Request request = inFlight;
+
+		if (request == null) {
+			log.warn("Unexpected response from " + address + " discarded");
+			return;
+		}
+
+		inFlight = null;
+		request.timeout.cancel();
+
+		if (request.command != null) {
+			flightRecorder.record(BRIFlightRecorder.RESPONSE, (System.nanoTime() - request.sent) / 1000, response);
+		}
+
+		if (recorder != null) {
+			recorder.recordResponse(response);
+		}
+
+		request.complete(response);
+
+		startNext();
+	}
+
+	/**
+	 * The request didn't get its response in time, its response will be
+	 * discarded when it arrives
+	 */
+	private void expire(Request request) {
+
+		if (inFlight != request) {
+			return;
+		}
+
+		inFlight = null;
+
+		if (request.command != null) {
+			flightRecorder.record(BRIFlightRecorder.TIMEOUT, (System.nanoTime() - request.sent) / 1000,
+					request.command);
+			discardFrames++;
+			request.fail(new SocketTimeoutException("No response from " + address + " in " + timeout + " ms."));
+
+		} else {
+			// The BRI didn't send the initial information in time, it could
+			// still be on its way: it's discarded up to the resync response
+			resyncPending = true;
+			flightRecorder.record(BRIFlightRecorder.COMMAND, 0, RESYNC_COMMAND);
+			write(RESYNC_COMMAND);
+
+			if (recorder != null) {
+				recorder.recordResponse("");
+			}
+			request.complete("");
+		}
+
+		startNext();
+	}
+
+	/**
+	 * Closes the connection and fails all its requests
+	 *
+	 * @param cause
+	 */
+	void fail(IOException cause) {
+
+		closed = true;
+
+		if (key != null) {
+			key.cancel();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Error closing " + address, e);
+		}
+
+		if (inFlight != null) {
+			inFlight.fail(cause);
+			inFlight = null;
+		}
+
+		while (!queue.isEmpty()) {
+			queue.removeFirst().fail(cause);
+		}
+	}
+
+	private final class Expiry implements Runnable {
+
+		private final Request request;
+
+		private Expiry(Request request) {
+			this.request = request;
+		}
+
+		public void run() {
+			expire(request);
+		}
+	}
+
+	/**
+	 * A command and the future of its response
+	 */
+	private static final class Request implements Future<String> {
+
+		private final String command;
+
+		private final long deadline;
+
+		private BRITimerWheel.Timeout timeout;
+
+		/** nanoTime when the command was written */
+		private long sent;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile String response;
+
+		private volatile Throwable error;
+
+		private volatile boolean cancelled = false;
+
+		private Request(String command, long deadline) {
+			this.command = command;
+			this.deadline = deadline;
+		}
+
+		private synchronized void complete(String value) {
+			if (done.getCount() > 0) {
+				response = value;
+				done.countDown();
+			}
+		}
+
+		private synchronized void fail(Throwable cause) {
+			if (done.getCount() > 0) {
+				error = cause;
+				done.countDown();
+			}
+		}
+
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if (done.getCount() == 0) {
+				return false;
+			}
+			cancelled = true;
+			done.countDown();
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public String get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		public String get(long time, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!done.await(time, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private String result() throws ExecutionException {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			if (error != null) {
+				throw new ExecutionException(error);
+			}
+			return response;
+		}
+	}
+}
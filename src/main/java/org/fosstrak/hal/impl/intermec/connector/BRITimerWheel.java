@@ -0,0 +1,177 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel driving the request timeouts of a selector thread.
+ * Scheduling and expiring are O(1), it's not thread safe and must only be used
+ * from the thread that owns it.
+ */
+final class BRITimerWheel {
+
+	/**
+	 * A scheduled task, it can be cancelled until it runs
+	 */
+	final class Timeout {
+
+		private final Runnable task;
+
+		private final List<Timeout> slot;
+
+		private int rounds;
+
+		private boolean done = false;
+
+		private Timeout(Runnable task, List<Timeout> slot, int rounds) {
+			this.task = task;
+			this.slot = slot;
+			this.rounds = rounds;
+		}
+
+		void cancel() {
+			if (!done) {
+				done = true;
+				slot.remove(this);
+				pending--;
+			}
+		}
+	}
+
+	private final List<List<Timeout>> wheel;
+
+	private final long tickMillis;
+
+	/** Slot of the current tick */
+	private int cursor = 0;
+
+	/** Time of the current tick, in milliseconds */
+	private long tickTime;
+
+	/** Number of timeouts scheduled */
+	private int pending = 0;
+
+	/**
+	 *
+	 * @param slots
+	 *            number of slots of the wheel
+	 * @param tickMillis
+	 *            resolution of the timeouts
+	 */
+	BRITimerWheel(int slots, long tickMillis) {
+
+		this.tickMillis = tickMillis;
+
+		wheel = new ArrayList<List<Timeout>>(slots);
+
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ArrayList<Timeout>());
+		}
+
+		tickTime = now();
+	}
+
+	/**
+	 * Schedules a task to run after the given delay, rounded up to the wheel
+	 * resolution
+	 *
+	 * @param task
+	 * @param delayMillis
+	 * @return
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+
+		if (pending == 0) {
+			// Idle wheels don't tick, the current tick is brought up to date
+			advance();
+		}
+
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		int slots = wheel.size();
+
+		List<Timeout> slot = wheel.get((int) ((cursor + ticks) % slots));
+		Timeout timeout = new Timeout(task, slot, (int) ((ticks - 1) / slots));
+		slot.add(timeout);
+		pending++;
+
+		return timeout;
+	}
+
+	/**
+	 * Runs the tasks expired up to now
+	 */
+	void advance() {
+
+		long now = now();
+		List<Timeout> expired = null;
+
+		if (pending == 0) {
+			// Nothing to expire, the missed ticks are skipped at once
+			long missed = (now - tickTime) / tickMillis;
+			tickTime += missed * tickMillis;
+			cursor = (int) ((cursor + missed) % wheel.size());
+			return;
+		}
+
+		while (tickTime + tickMillis <= now) {
+
+			tickTime += tickMillis;
+			cursor = (cursor + 1) % wheel.size();
+
+			Iterator<Timeout> it = wheel.get(cursor).iterator();
+
+			while (it.hasNext()) {
+				Timeout timeout = it.next();
+
+				if (timeout.rounds > 0) {
+					timeout.rounds--;
+
+				} else {
+					it.remove();
+					timeout.done = true;
+					pending--;
+
+					if (expired == null) {
+						expired = new ArrayList<Timeout>();
+					}
+					expired.add(timeout);
+				}
+			}
+		}
+
+		// Run outside the iteration, the tasks may schedule new timeouts
+		if (expired != null) {
+			for (Timeout timeout : expired) {
+				timeout.task.run();
+			}
+		}
+	}
+
+	/**
+	 * Milliseconds until the next tick with a timeout scheduled, 0 if there is
+	 * none
+	 *
+	 * @return
+	 */
+	long millisToNextTimeout() {
+
+		if (pending == 0) {
+			return 0;
+		}
+
+		int slots = wheel.size();
+
+		for (int ticks = 1; ticks <= slots; ticks++) {
+			if (!wheel.get((cursor + ticks) % slots).isEmpty()) {
+				return Math.max(1, tickTime + ticks * tickMillis - now());
+			}
+		}
+
+		return Math.max(1, tickTime + tickMillis - now());
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
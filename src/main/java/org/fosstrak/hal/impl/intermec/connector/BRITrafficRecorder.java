@@ -0,0 +1,195 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the raw BRI traffic of a connector into a compact capture file, so it
+ * can be fed back later with {@link BRIReplayConnector}.
+ *
+ * The file starts with a header (magic, version and the wall clock time of the
+ * capture start) followed by one record per connection, command or response:
+ * a kind byte, the microseconds elapsed since the previous record and the
+ * UTF-8 text, both numbers written as variable length integers. Every
+ * connection record is followed by the initial information of the BRI, so a
+ * capture spanning reconnections can be replayed. The events sent by the BRI
+ * are recorded when they are received, between the other records.
+ */
+public class BRITrafficRecorder {
+
+	static Logger log = Logger.getLogger(BRITrafficRecorder.class);
+
+	/** Capture file magic number, "BRIC" */
+	static final int MAGIC = 0x42524943;
+
+	/** Capture file format version */
+	static final int VERSION = 3;
+
+	/** Oldest version that can be replayed, it has no connection records */
+	static final int MIN_VERSION = 1;
+
+	/** Record kind for a new connection to the reader, with its address */
+	static final byte CONNECT = 'K';
+
+	/** Record kind for a command sent to the reader */
+	static final byte COMMAND = 'C';
+
+	/** Record kind for a response received from the reader */
+	static final byte RESPONSE = 'R';
+
+	/** Record kind for an event message sent by the reader */
+	static final byte EVENT = 'E';
+
+	private final File file;
+
+	private final DataOutputStream out;
+
+	/** nanoTime of the last written record */
+	private long lastRecordTime;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates a new capture file, an existing file is overwritten
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BRITrafficRecorder(File file) throws IOException {
+
+		this.file = file;
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		out.flush();
+
+		lastRecordTime = System.nanoTime();
+
+		log.info("Recording BRI traffic to: " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Records a new connection to the reader, before its initial information
+	 *
+	 * @param address
+	 */
+	public void recordConnect(String address) {
+		record(CONNECT, address, false);
+	}
+
+	/**
+	 * Records a command just sent to the reader
+	 *
+	 * @param command
+	 */
+	public void recordCommand(String command) {
+		record(COMMAND, command, false);
+	}
+
+	/**
+	 * Records a complete response, the capture is flushed so it survives an
+	 * abrupt end of the process
+	 *
+	 * @param response
+	 */
+	public void recordResponse(String response) {
+		record(RESPONSE, response, true);
+	}
+
+	/**
+	 * Records an event message received from the reader
+	 *
+	 * @param event
+	 */
+	public void recordEvent(String event) {
+		record(EVENT, event, false);
+	}
+
+	private synchronized void record(byte kind, String data, boolean flush) {
+
+		if (closed) {
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		try {
+			byte[] bytes = data.getBytes("UTF-8");
+
+			out.writeByte(kind);
+			writeVarLong(out, (now - lastRecordTime) / 1000);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+
+			if (flush) {
+				out.flush();
+			}
+
+			lastRecordTime = now;
+
+		} catch (IOException e) {
+			// A broken capture must never break the reader communication
+			log.error("Error writing to capture file " + file + ", recording stopped", e);
+			close();
+		}
+	}
+
+	/**
+	 * Flushes and closes the capture file
+	 */
+	public synchronized void close() {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warn("Error closing capture file " + file, e);
+		}
+	}
+
+	static void writeVarLong(DataOutputStream out, long value) throws IOException {
+
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+
+		long value = 0;
+		int shift = 0;
+
+		while (shift < 64) {
+			int b = in.read();
+
+			if (b < 0) {
+				throw new EOFException();
+			}
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+
+		throw new IOException("Malformed capture file");
+	}
+}
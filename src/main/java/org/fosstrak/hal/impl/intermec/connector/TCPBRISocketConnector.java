@@ -1,8 +1,7 @@
 package org.fosstrak.hal.impl.intermec.connector;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
@@ -15,9 +14,16 @@ import org.apache.log4j.Logger;
 /**
  * Simple TCP connector for Intermec's BRI
  * 
+ * Every request has an overall deadline of 'timeout' ms. A response not
+ * complete in time is not lost: the reader still owes it and it's discarded,
+ * up to its "OK>", before the response of the next request is read, so a
+ * timeout never shifts the following responses. If the initial information
+ * of the BRI doesn't arrive in time, a resync command is sent and everything
+ * up to its response is discarded, so a late banner can't shift them either.
+ * 
  * @author David Figueroa
  */
-public class TCPBRISocketConnector {
+public class TCPBRISocketConnector extends BRIConnector {
 
 	static Logger log = Logger.getLogger(TCPBRISocketConnector.class);
 
@@ -28,6 +34,9 @@ public class TCPBRISocketConnector {
 
 	private int timeout;
 
+	/** End of the response to each command */
+	private static final String PROMPT = "OK>";
+
 	/**
 	 * 
 	 */
@@ -36,7 +45,23 @@ public class TCPBRISocketConnector {
 	/**
 	 * Input stream to send data to the device
 	 */
-	private BufferedReader in;
+	private BRILineReader in;
+
+	/**
+	 * Response being received, kept across timeouts
+	 */
+	private StringBuilder frame = new StringBuilder();
+
+	/**
+	 * Responses still owed by the reader for requests that timed out
+	 */
+	private int owedFrames = 0;
+
+	/**
+	 * True until the response of the resync command is received, the data
+	 * before it is initial information arriving late
+	 */
+	private boolean resyncPending = false;
 
 	/**
 	 * Output stream to receive data from the device
@@ -48,6 +73,11 @@ public class TCPBRISocketConnector {
 
 	private boolean initialized = false;
 
+	/**
+	 * Optional recorder of the raw traffic, null if not recording
+	 */
+	private BRITrafficRecorder recorder;
+
 	// boolean autoReconnect;
 
 	/**
@@ -58,58 +88,126 @@ public class TCPBRISocketConnector {
 	 * @throws IOException
 	 */
 	public TCPBRISocketConnector(String host, int port, int timeout) throws IOException {
+		this(host, port, timeout, timeout, null);
+	}
+
+	/**
+	 * 
+	 * @param host
+	 * @param port
+	 * @param timeout
+	 * @param bannerTimeout
+	 *            maximum wait for the initial information sent by the BRI,
+	 *            readers that don't send it would block this long
+	 * @param recorder
+	 *            records all the traffic of this connector, can be null
+	 * @throws IOException
+	 */
+	public TCPBRISocketConnector(String host, int port, int timeout, int bannerTimeout, BRITrafficRecorder recorder)
+			throws IOException {
+		this(host, port, timeout, bannerTimeout, recorder, new BRIFlightRecorder());
+	}
+
+	/**
+	 * 
+	 * @param host
+	 * @param port
+	 * @param timeout
+	 * @param bannerTimeout
+	 *            maximum wait for the initial information sent by the BRI
+	 * @param recorder
+	 *            records all the traffic of this connector, can be null
+	 * @param flightRecorder
+	 *            ring of the last events, it can outlive this connector
+	 * @throws IOException
+	 */
+	public TCPBRISocketConnector(String host, int port, int timeout, int bannerTimeout, BRITrafficRecorder recorder,
+			BRIFlightRecorder flightRecorder) throws IOException {
+
+		super(flightRecorder);
 
 		// this.autoReconnect = autoReconnect;
 		this.timeout = timeout;
+		this.recorder = recorder;
 
 		address = new InetSocketAddress(host, port);
 
 		s = new Socket();
-		s.setSoTimeout(timeout);
-		s.connect(address);
+		s.connect(address, timeout);
 
 		log.info("TCPBRISocketConnector: " + host + ":" + port + " ,connection established");
 
-		System.out.println("TCPBRISocketConnector: " + host + ":" + port + " ,connection established");
+		flightRecorder.record(BRIFlightRecorder.CONNECT, 0, host + ":" + port);
 
-		in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		in = new BRILineReader(s);
 		out = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true);
 
+		if (recorder != null) {
+			recorder.recordConnect(host + ":" + port);
+		}
+
 		// Getting the Initial Information data that could be sent by the BRI
-		getResponse();
+		String banner;
 
-		initialized = true;
-	}
+		try {
+			banner = readFrame(System.nanoTime() + bannerTimeout * 1000000L);
 
-	/**
-	 * Connector's socket string representation
-	 */
-	public String toString() {
-		return s.getInetAddress().getHostAddress() + ":" + s.getPort();
+		} catch (SocketTimeoutException e) {
+			// Not every reader sends it, but it could still be on its way
+			banner = "";
+			resync(System.nanoTime() + timeout * 1000000L);
+		}
+
+		if (recorder != null) {
+			recorder.recordResponse(banner);
+		}
+
+		initialized = true;
 	}
 
 	/**
-	 * Returns the RFID tags list or null
+	 * Sends the resync command and discards everything received up to its
+	 * response. If it doesn't arrive before the deadline the resync goes on
+	 * before the response of the next request is read.
 	 * 
-	 * @param data
-	 * @return
+	 * @param deadline
 	 * @throws IOException
 	 */
-	public synchronized String[] sendReadRequest(String data) throws IOException {
+	private void resync(long deadline) throws IOException {
 
-		String response = sendRequest(data);
+		flightRecorder.record(BRIFlightRecorder.COMMAND, 0, RESYNC_COMMAND);
 
-		// If not, then there are no tags in the message
-		if (!response.startsWith("H")) {
-			return null;
+		out.println(RESYNC_COMMAND);
+		out.flush();
+
+		resyncPending = true;
+
+		try {
+			discardUntilResync(deadline);
+
+		} catch (SocketTimeoutException e) {
+			log.warn("TCPBRISocketConnector: no response to resync from " + this + " in " + timeout + " ms.");
 		}
+	}
 
-		// The "H" just indicate that the id is an HEX string then is not needed
-		response = response.replaceAll("H", "");
+	private void discardUntilResync(long deadline) throws IOException {
 
-		String[] list = response.split("\n");
+		while (resyncPending) {
+			String response = readFrame(deadline);
 
-		return list;
+			if (isResyncResponse(response)) {
+				resyncPending = false;
+			} else {
+				log.debug("Late initial information discarded: " + response);
+			}
+		}
+	}
+
+	/**
+	 * Connector's socket string representation
+	 */
+	public String toString() {
+		return s.getInetAddress().getHostAddress() + ":" + s.getPort();
 	}
 
 	/**
@@ -131,47 +229,187 @@ public class TCPBRISocketConnector {
 
 		sendRequestActive = true;
 
-		log.debug("Command send: " + data);
+		try {
+			if (log.isDebugEnabled()) {
+				log.debug("Command send: " + data);
+			}
 
-		out.println(data);
-		out.flush();
-		String response = getResponse();
+			if (recorder != null) {
+				recorder.recordCommand(data);
+			}
 
-		sendRequestActive = false;
+			long start = System.nanoTime();
+			flightRecorder.record(BRIFlightRecorder.COMMAND, 0, data);
 
-		notifyAll();
+			out.println(data);
+			out.flush();
+			String response = getResponse(start + timeout * 1000000L);
 
-		return response;
+			flightRecorder.record(BRIFlightRecorder.RESPONSE, (System.nanoTime() - start) / 1000, response);
+
+			if (recorder != null) {
+				recorder.recordResponse(response);
+			}
+
+			return response;
+
+		} finally {
+			sendRequestActive = false;
+
+			notifyAll();
+		}
 	}
 
 	/**
 	 * Returns the response for the previous send command, returns an empty
-	 * string if a SocketTimeoutException is triggered
+	 * string if it's not received before the deadline. The responses owed for
+	 * previous requests are discarded first.
 	 * 
+	 * @param deadline
+	 *            nanoTime by which the response must be received
 	 * @return
 	 * @throws IOException
 	 */
-	private synchronized String getResponse() throws IOException {
+	private synchronized String getResponse(long deadline) throws IOException {
 
-		StringBuffer buffer = new StringBuffer();
+		// This request's response is owed until it's read
+		owedFrames++;
 
 		try {
+			discardUntilResync(deadline);
 
-			String line = in.readLine();
-
-			while (line != null && !line.equals("OK>")) {
+			while (owedFrames > 1) {
+				readFrame(deadline);
+				owedFrames--;
 
-				buffer.append(line + "\n");
-				line = in.readLine();
+				log.debug("Late response discarded");
 			}
 
+			String response = readFrame(deadline);
+			owedFrames--;
+
+			return response;
+
 		} catch (SocketTimeoutException e) {
-			log.warn("Timeout of: " + timeout + " ms. in read operation");
+			flightRecorder.record(BRIFlightRecorder.TIMEOUT, timeout * 1000L, null);
+			log.warn("Timeout of: " + timeout + " ms. in read operation, " + owedFrames + " responses pending");
 
 			return "";
 		}
+	}
+
+	/**
+	 * Reads a whole response, up to the "OK>" prompt
+	 * 
+	 * @param deadline
+	 * @return
+	 * @throws SocketTimeoutException
+	 *             if the deadline is reached, the part received is kept
+	 * @throws IOException
+	 */
+	private String readFrame(long deadline) throws IOException {
+
+		String line = readLine(deadline);
+
+		while (line != null && !line.equals(PROMPT)) {
 
-		return buffer.toString();
+			frame.append(line).append('\n');
+			line = readLine(deadline);
+		}
+
+		if (line == null) {
+			throw new EOFException("Connection closed by " + this);
+		}
+
+		String response = frame.toString();
+		frame.setLength(0);
+
+		return response;
+	}
+
+	/**
+	 * Reads the next line that is not an event, the events are queued
+	 * 
+	 * @param deadline
+	 * @return
+	 * @throws IOException
+	 */
+	private String readLine(long deadline) throws IOException {
+
+		String line = in.readLine(deadline);
+
+		while (line != null && line.startsWith(EVENT_PREFIX)) {
+			if (recorder != null) {
+				recorder.recordEvent(line);
+			}
+			onEvent(line);
+			line = in.readLine(deadline);
+		}
+
+		return line;
+	}
+
+	/**
+	 * Returns the next event sent by the BRI. The connection is only read
+	 * while a request is in progress, so while it's idle this method reads it
+	 * waiting for the event, the responses still owed are discarded first.
+	 * 
+	 * @param millis
+	 *            maximum wait, 0 to not wait
+	 * @return the event, null if there is none
+	 * @throws IOException
+	 */
+	public synchronized String pollEvent(long millis) throws IOException {
+
+		String event = nextEvent();
+
+		if (event != null || millis <= 0) {
+			return event;
+		}
+
+		while (sendRequestActive) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		sendRequestActive = true;
+
+		try {
+			long deadline = System.nanoTime() + millis * 1000000L;
+
+			discardUntilResync(deadline);
+
+			while (owedFrames > 0) {
+				readFrame(deadline);
+				owedFrames--;
+			}
+
+			while ((event = nextEvent()) == null) {
+				String line = readLine(deadline);
+
+				if (line == null) {
+					throw new EOFException("Connection closed by " + this);
+				}
+
+				if (line.length() > 0 && !line.equals(PROMPT)) {
+					log.warn("Unexpected data from " + this + " discarded: " + line);
+				}
+			}
+
+			return event;
+
+		} catch (SocketTimeoutException e) {
+			return nextEvent();
+
+		} finally {
+			sendRequestActive = false;
+
+			notifyAll();
+		}
 	}
 
 	/**
@@ -0,0 +1,87 @@
+package org.fosstrak.hal.impl.intermec;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.fosstrak.hal.Trigger;
+import org.fosstrak.hal.impl.intermec.connector.FakeBRIServer;
+
+/**
+ * Checks that the asynchronous identify reads when the reader trigger fires
+ */
+public class AsynchronousIdentifyRunnerTest extends TestCase {
+
+	private static final String TRIGGER_EVENT = "EVT:TRIGGER fosstrakInput GPIO 1";
+
+	private FakeBRIServer server;
+
+	private IntermecBRIController controller;
+
+	private File configFile;
+
+	protected void tearDown() throws Exception {
+		if (controller != null) {
+			controller.stopAsynchronousIdentify();
+		}
+		server.close();
+		configFile.delete();
+	}
+
+	private void start(String engine) throws Exception {
+
+		server = new FakeBRIServer(0, "");
+		server.sendEvents(TRIGGER_EVENT, 300);
+
+		configFile = writeConfiguration(engine, server.getPort());
+
+		controller = new IntermecBRIController("test", configFile.getAbsolutePath());
+		controller.awaitReady(5000);
+	}
+
+	private static File writeConfiguration(String engine, int port) throws IOException {
+
+		File file = File.createTempFile("IntermecBRIController", ".xml");
+		FileWriter out = new FileWriter(file);
+
+		try {
+			out.write("<properties>\n" + "<host>127.0.0.1</host>\n" + "<port>" + port + "</port>\n"
+					+ "<timeout>500</timeout>\n" + "<bannerTimeout>200</bannerTimeout>\n"
+					+ "<connectionEngine>" + engine + "</connectionEngine>\n" + "<warmUp>false</warmUp>\n"
+					+ "<configReloadInterval>0</configReloadInterval>\n"
+					+ "<epcTransponderModelsConfig>/props/EPCTransponderModels_default.xml</epcTransponderModelsConfig>\n"
+					+ "<idTypesConfig>/props/IDTypes_default.xml</idTypesConfig>\n"
+					+ "<inputTrigger><mode>reader</mode><holdTime>1000</holdTime><mask>1</mask><value>1</value>"
+					+ "<pollInterval>100</pollInterval></inputTrigger>\n"
+					+ "<logicalSource><name>source</name><antennas>1</antennas></logicalSource>\n"
+					+ "</properties>\n");
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+
+	private int readsWithTimerTrigger() throws Exception {
+
+		assertTrue(controller.isReaderTriggerArmed());
+
+		controller.startAsynchronousIdentify(new String[] { "source" }, Trigger.createTimerTrigger(100));
+		Thread.sleep(2000);
+		controller.stopAsynchronousIdentify();
+
+		return server.countCommands("ATTRIB");
+	}
+
+	public void testTimerTriggerWithSocketEngine() throws Exception {
+		start("socket");
+		assertTrue(readsWithTimerTrigger() > 0);
+	}
+
+	public void testTimerTriggerWithSelectorEngine() throws Exception {
+		start("selector");
+		assertTrue(readsWithTimerTrigger() > 0);
+	}
+}
@@ -0,0 +1,98 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.EOFException;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the replay of captures that span reconnections
+ */
+public class BRIReplayConnectorTest extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("bri", ".capture");
+
+		BRITrafficRecorder recorder = new BRITrafficRecorder(file);
+
+		recorder.recordConnect("reader:2189");
+		recorder.recordResponse("BRI banner\n");
+		recorder.recordCommand("A");
+		recorder.recordResponse("HA\n");
+
+		recorder.recordConnect("reader:2189");
+		recorder.recordResponse("BRI banner\n");
+		recorder.recordCommand("B");
+		recorder.recordResponse("HB\n");
+
+		recorder.close();
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testReconnectGoesOnWithTheReplay() throws Exception {
+
+		BRIReplayConnector replay = new BRIReplayConnector(file, false);
+
+		assertEquals("HA\n", replay.sendRequest("A"));
+
+		replay.reconnect();
+
+		assertEquals("HB\n", replay.sendRequest("B"));
+		replay.close();
+	}
+
+	public void testReconnectionOfTheCaptureIsSkipped() throws Exception {
+
+		BRIReplayConnector replay = new BRIReplayConnector(file, false);
+
+		assertEquals("HA\n", replay.sendRequest("A"));
+		assertEquals("HB\n", replay.sendRequest("B"));
+
+		try {
+			replay.sendRequest("C");
+			fail("The capture should be exhausted");
+		} catch (EOFException e) {
+			assertFalse(replay.isConnected());
+		}
+	}
+
+	public void testEventsAreReplayed() throws Exception {
+
+		File events = File.createTempFile("bri", ".capture");
+
+		try {
+			BRITrafficRecorder recorder = new BRITrafficRecorder(events);
+
+			recorder.recordConnect("reader:2189");
+			recorder.recordResponse("BRI banner\n");
+			recorder.recordCommand("A");
+			recorder.recordEvent("EVT:TRIGGER t1");
+			recorder.recordResponse("HA\n");
+			recorder.recordEvent("EVT:TRIGGER t2");
+			recorder.recordCommand("B");
+			recorder.recordResponse("HB\n");
+			recorder.recordEvent("EVT:TRIGGER t3");
+			recorder.close();
+
+			BRIReplayConnector replay = new BRIReplayConnector(events, false);
+
+			assertNull(replay.pollEvent(0));
+			assertEquals("HA\n", replay.sendRequest("A"));
+			assertEquals("EVT:TRIGGER t1", replay.pollEvent(0));
+			assertEquals("EVT:TRIGGER t2", replay.pollEvent(0));
+			assertNull(replay.pollEvent(0));
+			assertEquals("HB\n", replay.sendRequest("B"));
+			assertEquals("EVT:TRIGGER t3", replay.pollEvent(0));
+			assertNull(replay.pollEvent(10));
+			replay.close();
+
+		} finally {
+			events.delete();
+		}
+	}
+}
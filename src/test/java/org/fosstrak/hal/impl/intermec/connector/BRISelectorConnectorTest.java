@@ -0,0 +1,68 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the responses of the selector connections stay in sync with
+ * their commands after timeouts and late initial information
+ */
+public class BRISelectorConnectorTest extends TestCase {
+
+	private static final int TIMEOUT = 200;
+
+	private BRIConnectionEngine engine;
+
+	private FakeBRIServer server;
+
+	private BRISelectorConnector connector;
+
+	protected void setUp() throws Exception {
+		engine = new BRIConnectionEngine(1);
+	}
+
+	protected void tearDown() throws Exception {
+		if (connector != null) {
+			connector.close();
+		}
+		server.close();
+		engine.shutdown();
+	}
+
+	private void connect(long bannerDelay, String bannerStart, int bannerTimeout) throws Exception {
+		server = new FakeBRIServer(bannerDelay, bannerStart);
+		connector = engine.connect("127.0.0.1", server.getPort(), TIMEOUT, bannerTimeout, null);
+	}
+
+	private void assertInSync(int commands) throws Exception {
+		for (int i = 1; i <= commands; i++) {
+			assertEquals("Hcmd" + i + "\n", connector.sendRequest("cmd" + i));
+		}
+	}
+
+	public void testBannerInTime() throws Exception {
+		connect(0, "", TIMEOUT);
+		assertInSync(3);
+	}
+
+	public void testNoBanner() throws Exception {
+		connect(-1, "", 100);
+		assertInSync(3);
+	}
+
+	public void testLateBanner() throws Exception {
+		connect(150, "", 100);
+		assertInSync(5);
+	}
+
+	public void testLateBannerPartlyReceived() throws Exception {
+		connect(150, "BRI ", 100);
+		assertInSync(5);
+	}
+
+	public void testTimeoutInTheMiddleOfAFrame() throws Exception {
+		connect(0, "", TIMEOUT);
+
+		assertEquals("", connector.sendRequest("SPLIT " + (TIMEOUT * 3 / 2)));
+		assertInSync(3);
+	}
+}
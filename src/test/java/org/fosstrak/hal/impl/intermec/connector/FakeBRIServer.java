@@ -0,0 +1,187 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BRI server for the connector tests, it serves a single connection. Every
+ * command is answered with "H" followed by the command, except:
+ * 
+ * <pre>
+ * SLOW &lt;ms&gt;   answered after the given delay
+ * SPLIT &lt;ms&gt;  half of the response, the delay and the rest of it
+ * RESYNC      answered with ERR, like any command unknown to the BRI
+ * EVENT &lt;ms&gt;  answered at once with an event inside the response, and
+ *             the same event sent again after the delay
+ * </pre>
+ * 
+ * It can also send an event periodically, like a reader trigger firing.
+ */
+public class FakeBRIServer extends Thread {
+
+	public static final String EVENT = "EVT:TRIGGER test GPIO 1";
+
+	private final ServerSocket server;
+
+	/** Delay before the initial information, negative to not send it */
+	private final long bannerDelay;
+
+	/** Part of the initial information sent right after the connection */
+	private final String bannerStart;
+
+	private Socket socket;
+
+	/** Output of the connection, null until the client connects */
+	private volatile OutputStream output;
+
+	/** Commands received, in order */
+	private final List<String> commands = new ArrayList<String>();
+
+	/**
+	 * 
+	 * @param bannerDelay
+	 *            delay before sending the initial information, negative to
+	 *            not send it
+	 * @param bannerStart
+	 *            part of the initial information sent without delay
+	 * @throws IOException
+	 */
+	public FakeBRIServer(long bannerDelay, String bannerStart) throws IOException {
+
+		this.bannerDelay = bannerDelay;
+		this.bannerStart = bannerStart;
+
+		server = new ServerSocket(0);
+		setDaemon(true);
+		start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public void run() {
+
+		try {
+			socket = server.accept();
+			OutputStream out = socket.getOutputStream();
+			output = out;
+
+			if (bannerStart.length() > 0) {
+				send(out, bannerStart);
+			}
+
+			if (bannerDelay >= 0) {
+				Thread.sleep(bannerDelay);
+				send(out, "BRI banner\r\nOK>\r\n");
+			}
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String command;
+
+			while ((command = in.readLine()) != null) {
+
+				synchronized (commands) {
+					commands.add(command);
+				}
+
+				if (command.startsWith("SLOW ")) {
+					Thread.sleep(Long.parseLong(command.substring(5)));
+					send(out, "HSLOW\r\nOK>\r\n");
+
+				} else if (command.startsWith("SPLIT ")) {
+					send(out, "HSPL");
+					Thread.sleep(Long.parseLong(command.substring(6)));
+					send(out, "IT\r\nOK>\r\n");
+
+				} else if (command.startsWith("EVENT ")) {
+					send(out, "HEV\r\n" + EVENT + "\r\nOK>\r\n");
+					Thread.sleep(Long.parseLong(command.substring(6)));
+					send(out, EVENT + "\r\n");
+
+				} else if (command.equals("RESYNC")) {
+					send(out, "ERR\r\nOK>\r\n");
+
+				} else {
+					send(out, "H" + command + "\r\nOK>\r\n");
+				}
+			}
+
+		} catch (Exception e) {
+			// connection closed by the test
+		}
+	}
+
+	private static void send(OutputStream out, String data) throws IOException {
+		synchronized (out) {
+			out.write(data.getBytes("US-ASCII"));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends the event every interval once the client is connected, until the
+	 * connection is closed
+	 * 
+	 * @param event
+	 * @param interval
+	 */
+	public void sendEvents(final String event, final long interval) {
+
+		Thread sender = new Thread() {
+
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(interval);
+
+						OutputStream out = output;
+
+						if (out != null) {
+							send(out, event + "\r\n");
+						}
+					}
+
+				} catch (Exception e) {
+					// connection closed by the test
+				}
+			}
+		};
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Number of commands received that start with the prefix
+	 * 
+	 * @param prefix
+	 * @return
+	 */
+	public int countCommands(String prefix) {
+
+		int count = 0;
+
+		synchronized (commands) {
+			for (String command : commands) {
+				if (command.startsWith(prefix)) {
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	public void close() throws IOException {
+		server.close();
+		if (socket != null) {
+			socket.close();
+		}
+	}
+}
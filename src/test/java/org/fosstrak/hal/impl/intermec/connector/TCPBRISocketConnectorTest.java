@@ -0,0 +1,86 @@
+package org.fosstrak.hal.impl.intermec.connector;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the responses stay in sync with their commands after timeouts
+ * and late initial information
+ */
+public class TCPBRISocketConnectorTest extends TestCase {
+
+	private static final int TIMEOUT = 200;
+
+	private FakeBRIServer server;
+
+	private TCPBRISocketConnector connector;
+
+	protected void tearDown() throws Exception {
+		if (connector != null) {
+			connector.close();
+		}
+		server.close();
+	}
+
+	private void connect(long bannerDelay, String bannerStart, int bannerTimeout) throws Exception {
+		server = new FakeBRIServer(bannerDelay, bannerStart);
+		connector = new TCPBRISocketConnector("127.0.0.1", server.getPort(), TIMEOUT, bannerTimeout, null);
+	}
+
+	private void assertInSync(int commands) throws Exception {
+		for (int i = 1; i <= commands; i++) {
+			assertEquals("Hcmd" + i + "\n", connector.sendRequest("cmd" + i));
+		}
+	}
+
+	public void testBannerInTime() throws Exception {
+		connect(0, "", TIMEOUT);
+		assertInSync(3);
+	}
+
+	public void testNoBanner() throws Exception {
+		connect(-1, "", 100);
+		assertInSync(3);
+	}
+
+	public void testLateBanner() throws Exception {
+		connect(150, "", 100);
+		assertInSync(5);
+	}
+
+	public void testLateBannerPartlyReceived() throws Exception {
+		connect(150, "BRI ", 100);
+		assertInSync(5);
+	}
+
+	public void testTimeoutInTheMiddleOfAFrame() throws Exception {
+		connect(0, "", TIMEOUT);
+
+		assertEquals("", connector.sendRequest("SPLIT " + (TIMEOUT * 3 / 2)));
+		assertInSync(3);
+	}
+
+	public void testTimeoutWhileDiscardingOwedResponse() throws Exception {
+		connect(0, "", TIMEOUT);
+
+		assertEquals("", connector.sendRequest("SLOW " + (TIMEOUT * 5 / 2)));
+
+		// Times out while the response of SLOW is still owed
+		assertEquals("", connector.sendRequest("owed"));
+
+		assertInSync(3);
+	}
+
+	public void testEvents() throws Exception {
+		connect(0, "", TIMEOUT);
+
+		// The event inside the response is not part of it
+		assertEquals("HEV\n", connector.sendRequest("EVENT 100"));
+		assertEquals(FakeBRIServer.EVENT, connector.pollEvent(0));
+
+		// The event sent while idle is read by the poll
+		assertNull(connector.pollEvent(0));
+		assertEquals(FakeBRIServer.EVENT, connector.pollEvent(TIMEOUT * 2));
+
+		assertInSync(3);
+	}
+}